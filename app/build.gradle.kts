@@ -48,6 +48,7 @@ dependencies {
     implementation(libs.material)
     implementation(libs.tensorflow.lite)
     testImplementation(libs.junit)
+    testImplementation(libs.json)
     androidTestImplementation(libs.androidx.junit)
     androidTestImplementation(libs.androidx.espresso.core)
 }
\ No newline at end of file
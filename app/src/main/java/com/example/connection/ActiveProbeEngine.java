@@ -0,0 +1,365 @@
+package com.example.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ActiveProbeEngine
+ * Opcjonalne aktywne pomiary przepustowości i opóźnienia względem skonfigurowanego serwera.
+ * Pasywne delty TrafficStats nic nie mówią o możliwościach łącza, gdy telefon jest bezczynny -
+ * tutaj wykonujemy krótkie serie TCP (download/upload) oraz pingi (TCP connect + UDP echo).
+ *
+ * Protokół serwera (jedna linia tekstu na połączenie TCP):
+ *   "DOWNLOAD <n>\n" - serwer wysyła n bajtów i zamyka połączenie,
+ *   "UPLOAD <n>\n" + n bajtów - serwer odpowiada "OK\n" po odebraniu całości.
+ * Port UDP odsyła każdy datagram bez zmian (echo).
+ *
+ * Pomiary uruchamiamy tylko, gdy radio i tak jest aktywne, oraz w ramach godzinowego limitu bajtów.
+ * Gniazda tworzy NetworkBinding - w serwisie przypięty do sieci komórkowej, żeby przy aktywnym Wi-Fi
+ * nie logować przepustowości Wi-Fi obok RSRP/SINR. Bez powiązania (np. brak sieci komórkowej) nie mierzymy.
+ * Sieć obsługuje osobny wątek, więc wątek roboczy serwisu nigdy nie czeka na I/O.
+ */
+public class ActiveProbeEngine {
+
+    // --- DOMYŚLNA KONFIGURACJA ---
+    public static final long DEFAULT_INTERVAL_MS = 5 * 60_000;          // Co 5 minut
+    public static final int DEFAULT_DOWNLOAD_BYTES = 1024 * 1024;        // 1 MB
+    public static final int DEFAULT_UPLOAD_BYTES = 256 * 1024;           // 256 kB
+    public static final long DEFAULT_BUDGET_BYTES_PER_HOUR = 20L * 1024 * 1024;
+
+    private static final long BUDGET_WINDOW_MS = 60 * 60_000;
+    private static final int SOCKET_TIMEOUT_MS = 5000;
+    private static final int UDP_PING_COUNT = 3;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final String host;
+    private final int tcpPort;
+    private final int udpPort;
+    private final long intervalMs;
+    private final int downloadBytes;
+    private final int uploadBytes;
+    private final long budgetBytesPerHour;
+
+    private final ExecutorService probeExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "ActiveProbe"));
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicReference<ProbeResult> pendingResult = new AtomicReference<>();
+
+    private volatile NetworkBinding networkBinding;
+
+    // Stan planowania - chroniony przez synchronized w maybeRun() (wołają ją kolektory wszystkich subskrypcji)
+    private long lastRunMs = 0;
+    private long budgetWindowStartMs = 0;
+    private long budgetUsedBytes = 0;
+
+    public ActiveProbeEngine(String host, int tcpPort, int udpPort) {
+        this(host, tcpPort, udpPort, DEFAULT_INTERVAL_MS, DEFAULT_DOWNLOAD_BYTES, DEFAULT_UPLOAD_BYTES,
+                DEFAULT_BUDGET_BYTES_PER_HOUR);
+    }
+
+    public ActiveProbeEngine(String host, int tcpPort, int udpPort, long intervalMs,
+                             int downloadBytes, int uploadBytes, long budgetBytesPerHour) {
+        this.host = host;
+        this.tcpPort = tcpPort;
+        this.udpPort = udpPort;
+        this.intervalMs = intervalMs;
+        this.downloadBytes = downloadBytes;
+        this.uploadBytes = uploadBytes;
+        this.budgetBytesPerHour = budgetBytesPerHour;
+    }
+
+    /**
+     * Ustawia sieć, przez którą idą pomiary. null wstrzymuje pomiary (np. sieć komórkowa utracona).
+     */
+    public void setNetworkBinding(NetworkBinding binding) {
+        this.networkBinding = binding;
+    }
+
+    /**
+     * Uruchamia pomiar w tle, jeśli pozwalają na to interwał, budżet, stan radia i jest powiązana sieć.
+     * @param radioActive true, jeśli modem jest już w stanie połączonym (był ruch w ostatniej próbce)
+     * @return true, jeśli pomiar został zlecony
+     */
+    public synchronized boolean maybeRun(boolean radioActive, long nowMs) {
+        if (!radioActive || running.get() || networkBinding == null) return false;
+        if (lastRunMs != 0 && nowMs - lastRunMs < intervalMs) return false;
+
+        if (nowMs - budgetWindowStartMs >= BUDGET_WINDOW_MS) {
+            budgetWindowStartMs = nowMs;
+            budgetUsedBytes = 0;
+        }
+        long plannedBytes = (long) downloadBytes + uploadBytes;
+        if (budgetUsedBytes + plannedBytes > budgetBytesPerHour) return false;
+
+        // Rezerwujemy budżet z góry - pomiar przerwany w połowie i tak mógł zużyć dane
+        budgetUsedBytes += plannedBytes;
+        lastRunMs = nowMs;
+        running.set(true);
+
+        probeExecutor.execute(() -> {
+            ProbeResult result;
+            try {
+                result = runProbe();
+            } finally {
+                running.set(false);
+            }
+            // Publikujemy dopiero po zdjęciu flagi - kto odebrał wynik, może od razu zlecić kolejny pomiar
+            pendingResult.set(result);
+        });
+        return true;
+    }
+
+    /**
+     * Zwraca najnowszy wynik (jednorazowo) albo null, jeśli od ostatniego wywołania nic nie przyszło.
+     */
+    public ProbeResult pollResult() {
+        return pendingResult.getAndSet(null);
+    }
+
+    public void shutdown() {
+        probeExecutor.shutdownNow();
+    }
+
+    /**
+     * Pełny, synchroniczny pomiar. Błędy pojedynczych kroków nie przerywają pozostałych i są zbierane w error.
+     */
+    ProbeResult runProbe() {
+        NetworkBinding binding = networkBinding;
+        ProbeResult result = new ProbeResult();
+        if (binding == null) {
+            result.addError("network", "brak powiązanej sieci");
+            return result;
+        }
+        result.timestampMs = System.currentTimeMillis();
+
+        try {
+            result.tcpConnectRttMs = measureTcpConnect(binding);
+        } catch (IOException e) {
+            result.addError("tcp_connect", e.getMessage());
+        }
+
+        try {
+            measureUdpEcho(binding, result);
+        } catch (IOException e) {
+            result.addError("udp_echo", e.getMessage());
+        }
+
+        try {
+            download(binding, downloadBytes, result);
+        } catch (IOException e) {
+            result.addError("download", e.getMessage());
+        }
+
+        try {
+            upload(binding, uploadBytes, result);
+        } catch (IOException e) {
+            result.addError("upload", e.getMessage());
+        }
+
+        return result;
+    }
+
+    // ============================================================================================
+    // POSZCZEGÓLNE POMIARY
+    // ============================================================================================
+
+    private float measureTcpConnect(NetworkBinding binding) throws IOException {
+        // Rozwiązanie nazwy poza pomiarem - mierzymy samo nawiązanie połączenia
+        InetSocketAddress address = new InetSocketAddress(binding.resolve(host), tcpPort);
+        try (Socket socket = binding.createSocket()) {
+            long start = System.nanoTime();
+            socket.connect(address, SOCKET_TIMEOUT_MS);
+            return (System.nanoTime() - start) / 1_000_000f;
+        }
+    }
+
+    private void measureUdpEcho(NetworkBinding binding, ProbeResult result) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            binding.bindSocket(socket);
+            socket.connect(new InetSocketAddress(binding.resolve(host), udpPort));
+
+            byte[] buffer = new byte[64];
+            float rttSum = 0;
+            int replies = 0;
+
+            for (int seq = 0; seq < UDP_PING_COUNT; seq++) {
+                byte[] payload = ("PING " + seq).getBytes(StandardCharsets.US_ASCII);
+                long start = System.nanoTime();
+                socket.send(new DatagramPacket(payload, payload.length));
+                long rttNs = awaitEcho(socket, payload, buffer, start);
+                if (rttNs >= 0) {
+                    rttSum += rttNs / 1_000_000f;
+                    replies++;
+                }
+            }
+
+            result.udpPingsSent = UDP_PING_COUNT;
+            result.udpPingsLost = UDP_PING_COUNT - replies;
+            result.udpRttMs = replies > 0 ? rttSum / replies : -1.0f;
+        }
+    }
+
+    /**
+     * Czeka na echo dokładnie tego pingu. Spóźnione odpowiedzi na wcześniejsze pingi (i inne obce datagramy)
+     * odrzucamy - inaczej zaniżyłyby RTT i ukryły stratę.
+     * @return RTT w ns albo -1, jeśli do SOCKET_TIMEOUT_MS od wysłania nie przyszło pasujące echo
+     */
+    private static long awaitEcho(DatagramSocket socket, byte[] payload, byte[] buffer, long sentNs) throws IOException {
+        long deadlineNs = sentNs + SOCKET_TIMEOUT_MS * 1_000_000L;
+        while (true) {
+            long remainingMs = (deadlineNs - System.nanoTime()) / 1_000_000L;
+            if (remainingMs <= 0) return -1;
+            socket.setSoTimeout((int) remainingMs);
+
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(reply);
+            } catch (SocketTimeoutException e) {
+                return -1; // Utracony pakiet - liczymy jako stratę
+            }
+            if (reply.getLength() == payload.length
+                    && Arrays.equals(Arrays.copyOf(reply.getData(), reply.getLength()), payload)) {
+                return System.nanoTime() - sentNs;
+            }
+        }
+    }
+
+    /**
+     * Zegar startuje przy pierwszym odebranym bajcie - DNS, handshake TCP i obieg komendy nie zaniżają
+     * przepustowości (przy 1 MB na radiu to spora część czasu). Pierwszy bajt nie wchodzi do przeliczenia.
+     */
+    private void download(NetworkBinding binding, int bytes, ProbeResult result) throws IOException {
+        try (Socket socket = openCommandSocket(binding)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("DOWNLOAD " + bytes + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            if (bytes <= 0 || in.read() == -1) {
+                result.downloadBytes = 0;
+                return;
+            }
+            long start = System.nanoTime();
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 1;
+            int read;
+            while (total < bytes && (read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            long elapsedNs = System.nanoTime() - start;
+
+            result.downloadBytes = total;
+            result.downloadKbps = toKbps(total - 1, elapsedNs);
+        }
+    }
+
+    /**
+     * Zegar startuje tuż przed zapisem danych (połączenie i komenda są już za nami), a kończy się
+     * na potwierdzeniu serwera - mierzymy dostarczenie, a nie tylko zapis do bufora gniazda.
+     */
+    private void upload(NetworkBinding binding, int bytes, ProbeResult result) throws IOException {
+        try (Socket socket = openCommandSocket(binding)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("UPLOAD " + bytes + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            long start = System.nanoTime();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = bytes;
+            while (remaining > 0) {
+                int chunk = (int) Math.min(buffer.length, remaining);
+                out.write(buffer, 0, chunk);
+                remaining -= chunk;
+            }
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            if (in.read() != 'O') throw new IOException("Brak potwierdzenia uploadu");
+            long elapsedNs = System.nanoTime() - start;
+
+            result.uploadBytes = bytes;
+            result.uploadKbps = toKbps(bytes, elapsedNs);
+        }
+    }
+
+    private Socket openCommandSocket(NetworkBinding binding) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(binding.resolve(host), tcpPort);
+        Socket socket = binding.createSocket();
+        try {
+            socket.connect(address, SOCKET_TIMEOUT_MS);
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static float toKbps(long bytes, long elapsedNs) {
+        if (elapsedNs <= 0) return 0.0f;
+        return (bytes * 8f) / (elapsedNs / 1_000_000f); // bity/ms == kbit/s
+    }
+
+    /**
+     * Sieć, przez którą idą pomiary: tworzenie gniazd TCP, przypinanie gniazd UDP i rozwiązywanie nazw.
+     * Na Androidzie implementacja deleguje do android.net.Network (sieć komórkowa).
+     */
+    public interface NetworkBinding {
+        Socket createSocket() throws IOException;
+
+        void bindSocket(DatagramSocket socket) throws IOException;
+
+        InetAddress resolve(String host) throws IOException;
+
+        // Domyślna sieć procesu - używana w testach na lokalnym serwerze
+        NetworkBinding PROCESS_DEFAULT = new NetworkBinding() {
+            @Override
+            public Socket createSocket() {
+                return new Socket();
+            }
+
+            @Override
+            public void bindSocket(DatagramSocket socket) { }
+
+            @Override
+            public InetAddress resolve(String host) throws IOException {
+                return InetAddress.getByName(host);
+            }
+        };
+    }
+
+    /**
+     * Wynik jednego pomiaru. Pola z wartością -1 oznaczają krok, który się nie udał.
+     */
+    public static class ProbeResult {
+        public long timestampMs;
+        public float tcpConnectRttMs = -1.0f;
+        public float udpRttMs = -1.0f;
+        public int udpPingsSent = 0;
+        public int udpPingsLost = 0;
+        public long downloadBytes = 0;
+        public float downloadKbps = -1.0f;
+        public long uploadBytes = 0;
+        public float uploadKbps = -1.0f;
+        // Błędy kolejnych kroków rozdzielone "; " (null, jeśli wszystko się udało)
+        public String error;
+
+        void addError(String step, String message) {
+            String entry = step + ": " + message;
+            error = error == null ? entry : error + "; " + entry;
+        }
+    }
+}
@@ -1,74 +1,91 @@
 package com.example.connection;
 
-import android.content.Context;
-import android.content.res.AssetFileDescriptor;
 import org.tensorflow.lite.Interpreter;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 
+/**
+ * AnomalyDetector
+ * Jeden model autoenkodera z własną konfiguracją normalizacji i progiem anomalii.
+ * Interpretery pochodzą ze wspólnej puli (DetectorRegistry.InterpreterPool) - kilka detektorów
+ * może korzystać z tego samego pliku .tflite bez ładowania go wielokrotnie.
+ */
 public class AnomalyDetector {
 
-    private Interpreter interpreter;
-    private static final String MODEL_FILE = "model_5g_dense_autoencoder.tflite";
-
+    private final String route;
+    private final int windowSize;
+    private final int featureCount;
     // Stałe do normalizacji (muszą pasować do tego, co robił MinMaxScaler w Pythonie)
-    // Przyjmujemy typowe zakresy dla 5G:
-    private static final float MIN_RSRP = -140.0f;
-    private static final float MAX_RSRP = -40.0f;
+    private final float[] featureMin;
+    private final float[] featureMax;
+    private final float threshold;
+    private final DetectorRegistry.InterpreterPool interpreterPool;
 
-    private static final float MIN_RSRQ = -30.0f;
-    private static final float MAX_RSRQ = -3.0f;
+    AnomalyDetector(String route, int windowSize, float[] featureMin, float[] featureMax, float threshold,
+                    DetectorRegistry.InterpreterPool interpreterPool) {
+        if (featureMin.length != featureMax.length) {
+            throw new IllegalArgumentException("Niezgodna liczba cech min/max dla modelu " + route);
+        }
+        this.route = route;
+        this.windowSize = windowSize;
+        this.featureCount = featureMin.length;
+        this.featureMin = featureMin;
+        this.featureMax = featureMax;
+        this.threshold = threshold;
+        this.interpreterPool = interpreterPool;
+    }
+
+    public String getRoute() {
+        return route;
+    }
 
-    private static final float MIN_SNR = -10.0f;
-    private static final float MAX_SNR = 30.0f;
+    public int getWindowSize() {
+        return windowSize;
+    }
 
-    public AnomalyDetector(Context context) throws IOException {
-        interpreter = new Interpreter(loadModelFile(context));
+    public float getThreshold() {
+        return threshold;
     }
 
-    // Ładowanie modelu z folderu assets
-    private MappedByteBuffer loadModelFile(Context context) throws IOException {
-        AssetFileDescriptor fileDescriptor = context.getAssets().openFd(MODEL_FILE);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    // false, gdy model okazał się niezgodny z konfiguracją - wtedy nie zlecamy już ocen
+    public boolean isAvailable() {
+        return !interpreterPool.isDisabled();
     }
 
     /**
-     * Główna metoda analizy.
-     * @param rawData Tablica 10x3 (10 ostatnich próbek: [RSRP, RSRQ, SNR])
+     * Główna metoda analizy. Bezpieczna wątkowo - każde wywołanie dostaje z puli wyłączny interpreter.
+     * @param rawData Tablica [windowSize][featureCount] (ostatnie próbki, np. [RSRP, RSRQ, SNR])
      * @return Wynik anomalii (MSE - Błąd rekonstrukcji). Im wyższy, tym gorzej.
      */
-    public float analyze(float[][] rawData) {
-        // 1. Przygotowanie wejścia: [Batch=1, Time=10, Features=3]
-        float[][][] input = new float[1][10][3];
+    public float analyze(float[][] rawData) throws InterruptedException {
+        // 1. Przygotowanie wejścia: [Batch=1, Time=windowSize, Features=featureCount]
+        float[][][] input = new float[1][windowSize][featureCount];
 
         // Normalizacja danych (tak jak w Pythonie!)
-        for (int i = 0; i < 10; i++) {
-            input[0][i][0] = normalize(rawData[i][0], MIN_RSRP, MAX_RSRP);
-            input[0][i][1] = normalize(rawData[i][1], MIN_RSRQ, MAX_RSRQ);
-            input[0][i][2] = normalize(rawData[i][2], MIN_SNR, MAX_SNR);
+        for (int i = 0; i < windowSize; i++) {
+            for (int j = 0; j < featureCount; j++) {
+                input[0][i][j] = normalize(rawData[i][j], featureMin[j], featureMax[j]);
+            }
         }
 
         // 2. Przygotowanie wyjścia
-        float[][][] output = new float[1][10][3];
+        float[][][] output = new float[1][windowSize][featureCount];
 
         // 3. Inferencja (Uruchomienie modelu)
-        interpreter.run(input, output);
+        Interpreter interpreter = interpreterPool.acquire();
+        try {
+            interpreter.run(input, output);
+        } finally {
+            interpreterPool.release(interpreter);
+        }
 
         // 4. Obliczenie błędu (MSE - Mean Squared Error)
         float mse = 0.0f;
-        for (int i = 0; i < 10; i++) {
-            for (int j = 0; j < 3; j++) {
+        for (int i = 0; i < windowSize; i++) {
+            for (int j = 0; j < featureCount; j++) {
                 float diff = input[0][i][j] - output[0][i][j];
                 mse += diff * diff;
             }
         }
-        return mse / (10 * 3); // Średni błąd
+        return mse / (windowSize * featureCount); // Średni błąd
     }
 
     private float normalize(float value, float min, float max) {
@@ -76,8 +93,4 @@ public class AnomalyDetector {
         // Ograniczamy do 0-1 (clip), żeby nie wyjść poza zakres
         return Math.max(0.0f, Math.min(1.0f, normalized));
     }
-
-    public void close() {
-        if (interpreter != null) interpreter.close();
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,237 @@
+package com.example.connection;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * CoverageTileAggregator
+ * Przyrostowa agregacja pokrycia na siatce geograficznej o stałej precyzji.
+ * Każda próbka trafia do kafelka (lat/lng zaokrąglone do TILE_SIZE_DEG) osobno dla każdej technologii,
+ * dzięki czemu mapa pokrycia kosztuje O(kafelki) zamiast O(próbki).
+ *
+ * Dane trzymane są w tablicach prymitywów (open addressing, klucz typu long) - bez obiektu na kafelek.
+ * Każda subskrypcja (SIM) ma własny agregator, żeby nie mieszać pomiarów różnych operatorów.
+ * Kafelki 5G_NSA niosą RSRP/SINR warstwy NR; poziomy kotwicy LTE trafiają tam tylko, gdy modem nie raportuje NR.
+ * Klasa nie jest wątkowo bezpieczna - wołający synchronizuje się na instancji
+ * (record() z wątku kolektora, persist() z wątku serwisu).
+ */
+public class CoverageTileAggregator {
+
+    private static final String TAG = "CoverageTiles";
+
+    // Rozmiar kafelka w stopniach (~110 m w osi N-S)
+    public static final double TILE_SIZE_DEG = 0.001;
+
+    // Technologie (mieszczą się w 2 najmłodszych bitach klucza)
+    public static final int TECH_LTE = 0;
+    public static final int TECH_5G_NSA = 1;
+    public static final int TECH_5G_SA = 2;
+    private static final String[] TECH_NAMES = {"LTE", "5G_NSA", "5G_SA"};
+
+    private static final long EMPTY_KEY = -1L;
+    private static final int INITIAL_CAPACITY = 256; // Musi być potęgą dwójki
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // --- TABLICE KAFELKÓW (struct-of-arrays) ---
+    private long[] keys;
+    private int[] counts;
+    private double[] rsrpSum;
+    private float[] rsrpMin;
+    private float[] rsrpMax;
+    private int[] sinrCounts;
+    private double[] sinrSum;
+    private float[] sinrMin;
+    private float[] sinrMax;
+    private int[] anomalyCounts;
+
+    private int size = 0;
+    private boolean dirty = false;
+
+    public CoverageTileAggregator() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Dodaje próbkę do kafelka.
+     * @param sinr Float.NaN, jeśli modem nie raportuje SINR
+     */
+    public void record(double lat, double lng, int tech, float rsrp, float sinr, boolean isAnomaly) {
+        if (tech < TECH_LTE || tech > TECH_5G_SA) return;
+        if (Double.isNaN(lat) || Double.isNaN(lng)) return;
+        if (lat < -90.0 || lat > 90.0 || lng < -180.0 || lng > 180.0) return;
+
+        int slot = findOrInsert(tileKey(lat, lng, tech));
+
+        counts[slot]++;
+        rsrpSum[slot] += rsrp;
+        rsrpMin[slot] = Math.min(rsrpMin[slot], rsrp);
+        rsrpMax[slot] = Math.max(rsrpMax[slot], rsrp);
+
+        if (!Float.isNaN(sinr)) {
+            sinrCounts[slot]++;
+            sinrSum[slot] += sinr;
+            sinrMin[slot] = Math.min(sinrMin[slot], sinr);
+            sinrMax[slot] = Math.max(sinrMax[slot], sinr);
+        }
+
+        if (isAnomaly) anomalyCounts[slot]++;
+        dirty = true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Zapisuje wszystkie kafelki do pliku JSONL (jeden kafelek na linię).
+     * Zapis idzie do pliku tymczasowego i jest podmieniany atomowo, więc przerwanie nie psuje poprzedniej wersji.
+     * Jeśli od ostatniego zapisu nic się nie zmieniło, nic nie robimy.
+     */
+    public void persist(File target) {
+        if (!dirty || target == null) return;
+
+        File tmp = new File(target.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == EMPTY_KEY) continue;
+                sb.append(tileToJson(i).toString()).append('\n');
+            }
+            out.write(sb.toString().getBytes());
+            out.getFD().sync();
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Błąd zapisu kafelków pokrycia", e);
+            return;
+        }
+
+        if (tmp.renameTo(target)) {
+            dirty = false;
+        } else {
+            Log.e(TAG, "Nie udało się podmienić pliku kafelków: " + target);
+        }
+    }
+
+    // ============================================================================================
+    // KLUCZE I TABLICA MIESZAJĄCA
+    // ============================================================================================
+
+    // Klucz: [latIdx: 18 bit][lngIdx: 19 bit][tech: 2 bit] - zawsze nieujemny, więc -1 może oznaczać pusty slot
+    static long tileKey(double lat, double lng, int tech) {
+        long latIdx = (long) Math.floor((lat + 90.0) / TILE_SIZE_DEG);
+        long lngIdx = (long) Math.floor((lng + 180.0) / TILE_SIZE_DEG);
+        return (latIdx << 32) | (lngIdx << 2) | tech;
+    }
+
+    private static int hash(long key) {
+        // Mieszanie bitów (finalizer MurmurHash3), żeby sąsiednie kafelki nie lądowały w sąsiednich slotach
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int findOrInsert(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY_KEY) {
+            if (keys[slot] == key) return slot;
+            slot = (slot + 1) & mask;
+        }
+
+        if (size + 1 > keys.length * LOAD_FACTOR) {
+            rehash(keys.length * 2);
+            return findOrInsert(key);
+        }
+
+        keys[slot] = key;
+        rsrpMin[slot] = Float.POSITIVE_INFINITY;
+        rsrpMax[slot] = Float.NEGATIVE_INFINITY;
+        sinrMin[slot] = Float.POSITIVE_INFINITY;
+        sinrMax[slot] = Float.NEGATIVE_INFINITY;
+        size++;
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        counts = new int[capacity];
+        rsrpSum = new double[capacity];
+        rsrpMin = new float[capacity];
+        rsrpMax = new float[capacity];
+        sinrCounts = new int[capacity];
+        sinrSum = new double[capacity];
+        sinrMin = new float[capacity];
+        sinrMax = new float[capacity];
+        anomalyCounts = new int[capacity];
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+        double[] oldRsrpSum = rsrpSum;
+        float[] oldRsrpMin = rsrpMin;
+        float[] oldRsrpMax = rsrpMax;
+        int[] oldSinrCounts = sinrCounts;
+        double[] oldSinrSum = sinrSum;
+        float[] oldSinrMin = sinrMin;
+        float[] oldSinrMax = sinrMax;
+        int[] oldAnomalyCounts = anomalyCounts;
+
+        allocate(newCapacity);
+        int mask = newCapacity - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY_KEY) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != EMPTY_KEY) slot = (slot + 1) & mask;
+
+            keys[slot] = oldKeys[i];
+            counts[slot] = oldCounts[i];
+            rsrpSum[slot] = oldRsrpSum[i];
+            rsrpMin[slot] = oldRsrpMin[i];
+            rsrpMax[slot] = oldRsrpMax[i];
+            sinrCounts[slot] = oldSinrCounts[i];
+            sinrSum[slot] = oldSinrSum[i];
+            sinrMin[slot] = oldSinrMin[i];
+            sinrMax[slot] = oldSinrMax[i];
+            anomalyCounts[slot] = oldAnomalyCounts[i];
+        }
+    }
+
+    private JSONObject tileToJson(int slot) throws JSONException {
+        long key = keys[slot];
+        long latIdx = key >>> 32;
+        long lngIdx = (key >>> 2) & 0x3FFFFFFFL;
+        int tech = (int) (key & 0x3L);
+
+        JSONObject tile = new JSONObject();
+        // Współrzędne południowo-zachodniego narożnika kafelka
+        tile.put("tile_lat", latIdx * TILE_SIZE_DEG - 90.0);
+        tile.put("tile_lng", lngIdx * TILE_SIZE_DEG - 180.0);
+        tile.put("tile_size_deg", TILE_SIZE_DEG);
+        tile.put("tech", TECH_NAMES[tech]);
+        tile.put("count", counts[slot]);
+        tile.put("rsrp_mean", rsrpSum[slot] / counts[slot]);
+        tile.put("rsrp_min", rsrpMin[slot]);
+        tile.put("rsrp_max", rsrpMax[slot]);
+        if (sinrCounts[slot] > 0) {
+            tile.put("sinr_mean", sinrSum[slot] / sinrCounts[slot]);
+            tile.put("sinr_min", sinrMin[slot]);
+            tile.put("sinr_max", sinrMax[slot]);
+        } else {
+            tile.put("sinr_mean", JSONObject.NULL);
+            tile.put("sinr_min", JSONObject.NULL);
+            tile.put("sinr_max", JSONObject.NULL);
+        }
+        tile.put("anomaly_count", anomalyCounts[slot]);
+        return tile;
+    }
+}
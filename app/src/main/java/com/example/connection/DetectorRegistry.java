@@ -0,0 +1,327 @@
+package com.example.connection;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.tensorflow.lite.Interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DetectorRegistry
+ * Rejestr modeli anomalii ładowany z assets/detector_models.json. Każdy wpis to "trasa" (typ komórki:
+ * 5G_NR, LTE, NSA_ANCHOR) z własnym plikiem .tflite, normalizacją i progiem.
+ *
+ * Inferencja idzie na ograniczonej puli wątków (INFERENCE_THREADS), więc komórki różnych typów
+ * są oceniane równolegle, ale liczba jednoczesnych wywołań TFLite jest stała. Interpretery są współdzielone
+ * per plik modelu, ładowane leniwie przy pierwszym użyciu i zwalniane po IDLE_EVICT_MS bezczynności.
+ */
+public class DetectorRegistry {
+
+    private static final String TAG = "DetectorRegistry";
+    private static final String CONFIG_FILE = "detector_models.json";
+
+    // Trasy (typy komórek) obsługiwane przez rejestr
+    public static final String ROUTE_5G_NR = "5G_NR";
+    public static final String ROUTE_LTE = "LTE";
+    public static final String ROUTE_NSA_ANCHOR = "NSA_ANCHOR";
+
+    // Cechy, które kolektor dostarcza dla danej trasy (w tej kolejności) - "features" z konfiguracji musi się zgadzać
+    private static final Map<String, String[]> ROUTE_FEATURES = new HashMap<>();
+    static {
+        ROUTE_FEATURES.put(ROUTE_5G_NR, new String[]{"rsrp", "rsrq", "sinr"});
+        ROUTE_FEATURES.put(ROUTE_LTE, new String[]{"rsrp", "rsrq", "rssnr"});
+        ROUTE_FEATURES.put(ROUTE_NSA_ANCHOR, new String[]{"rsrp", "rsrq", "rssnr"});
+    }
+
+    private static final int INFERENCE_THREADS = 2;
+    private static final long IDLE_EVICT_MS = 5 * 60_000;
+    private static final long EVICT_CHECK_MS = 60_000;
+
+    private final Map<String, AnomalyDetector> detectors = new HashMap<>();
+    private final Map<String, InterpreterPool> pools = new HashMap<>();
+    private final ScheduledExecutorService inferenceExecutor;
+    private int maxWindowSize = 0;
+
+    public DetectorRegistry(Context context) throws IOException {
+        try {
+            JSONArray models = new JSONObject(readAsset(context, CONFIG_FILE)).getJSONArray("models");
+            for (int i = 0; i < models.length(); i++) {
+                registerModel(context, models.getJSONObject(i));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Niepoprawny " + CONFIG_FILE, e);
+        }
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(INFERENCE_THREADS,
+                r -> new Thread(r, "AnomalyInference"));
+        executor.setRemoveOnCancelPolicy(true);
+        inferenceExecutor = executor;
+        inferenceExecutor.scheduleWithFixedDelay(this::evictIdle, EVICT_CHECK_MS, EVICT_CHECK_MS, TimeUnit.MILLISECONDS);
+
+        Log.d(TAG, "Zarejestrowano modele: " + detectors.keySet() + " (pliki: " + pools.keySet() + ")");
+    }
+
+    /**
+     * Waliduje wpis konfiguracji względem tego, co dostarcza kolektor, zanim cokolwiek zostanie załadowane.
+     * Kształt wejścia samego modelu sprawdzamy dopiero przy tworzeniu pierwszego interpretera.
+     */
+    private void registerModel(Context context, JSONObject config) throws JSONException, IOException {
+        String route = config.getString("route");
+        String file = config.getString("file");
+        int windowSize = config.getInt("window_size");
+        String[] features = toStringArray(config.getJSONArray("features"));
+        float[] featureMin = toFloatArray(config.getJSONArray("min"));
+        float[] featureMax = toFloatArray(config.getJSONArray("max"));
+
+        String[] supplied = ROUTE_FEATURES.get(route);
+        if (supplied == null) {
+            throw new IOException("Nieznana trasa " + route + " w " + CONFIG_FILE);
+        }
+        if (!Arrays.equals(features, supplied)) {
+            throw new IOException("Model " + route + " oczekuje cech " + Arrays.toString(features)
+                    + ", a kolektor dostarcza " + Arrays.toString(supplied));
+        }
+        if (featureMin.length != features.length || featureMax.length != features.length) {
+            throw new IOException("Model " + route + ": min/max muszą mieć " + features.length + " wartości");
+        }
+        if (windowSize <= 0) {
+            throw new IOException("Model " + route + ": niepoprawne window_size " + windowSize);
+        }
+
+        int[] inputShape = {1, windowSize, features.length};
+        InterpreterPool pool = pools.get(file);
+        if (pool == null) {
+            pool = new InterpreterPool(context, file, INFERENCE_THREADS, inputShape);
+            pools.put(file, pool);
+        } else if (!Arrays.equals(pool.getInputShape(), inputShape)) {
+            // Jeden plik .tflite ma jeden kształt wejścia - trasy współdzielące plik muszą się na niego zgadzać
+            throw new IOException("Model " + route + ": kształt " + Arrays.toString(inputShape)
+                    + " niezgodny z innym wpisem dla " + file + " " + Arrays.toString(pool.getInputShape()));
+        }
+
+        AnomalyDetector detector = new AnomalyDetector(
+                route,
+                windowSize,
+                featureMin,
+                featureMax,
+                (float) config.getDouble("threshold"),
+                pool);
+        detectors.put(route, detector);
+        maxWindowSize = Math.max(maxWindowSize, detector.getWindowSize());
+    }
+
+    // ============================================================================================
+    // API
+    // ============================================================================================
+
+    /**
+     * Zwraca detektor dla trasy albo null, jeśli rejestr nie ma dla niej modelu
+     * lub model został wyłączony (niezgodny kształt wejścia).
+     */
+    public AnomalyDetector getDetector(String route) {
+        AnomalyDetector detector = detectors.get(route);
+        return detector != null && detector.isAvailable() ? detector : null;
+    }
+
+    // Najdłuższe okno spośród modeli - tyle próbek trzymamy per komórka
+    public int getMaxWindowSize() {
+        return maxWindowSize;
+    }
+
+    /**
+     * Zleca ocenę okna na puli inferencji. Okno musi mieć dokładnie detector.getWindowSize() wierszy.
+     */
+    public Future<Float> submit(AnomalyDetector detector, float[][] window) {
+        return inferenceExecutor.submit(() -> detector.analyze(window));
+    }
+
+    public void evictIdle() {
+        long now = SystemClock.elapsedRealtime();
+        for (InterpreterPool pool : pools.values()) {
+            pool.evictIfIdle(now, IDLE_EVICT_MS);
+        }
+    }
+
+    public void close() {
+        inferenceExecutor.shutdownNow();
+        for (InterpreterPool pool : pools.values()) {
+            pool.close();
+        }
+    }
+
+    // ============================================================================================
+    // POMOCNICZE
+    // ============================================================================================
+
+    private static String readAsset(Context context, String name) throws IOException {
+        try (InputStream in = context.getAssets().open(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        }
+    }
+
+    private static String[] toStringArray(JSONArray array) throws JSONException {
+        String[] result = new String[array.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = array.getString(i);
+        }
+        return result;
+    }
+
+    private static float[] toFloatArray(JSONArray array) throws JSONException {
+        float[] result = new float[array.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (float) array.getDouble(i);
+        }
+        return result;
+    }
+
+    /**
+     * InterpreterPool
+     * Pula interpreterów TFLite dla jednego pliku modelu. Plik mapujemy raz, a interpreterów tworzymy
+     * najwyżej tyle, ile jest wątków inferencji (Interpreter nie jest wątkowo bezpieczny).
+     * Pierwszy interpreter weryfikuje kształt wejścia modelu; przy niezgodności pula zostaje trwale wyłączona.
+     */
+    static class InterpreterPool {
+
+        private final Context context;
+        private final String modelFile;
+        private final int maxInterpreters;
+        private final int[] inputShape; // [1, window_size, liczba cech] z konfiguracji
+
+        private final ArrayDeque<Interpreter> idle = new ArrayDeque<>();
+        private MappedByteBuffer modelBuffer;
+        private int created = 0;
+        private int inUse = 0;
+        private long lastUsedMs = 0;
+        private boolean closed = false;
+        private boolean shapeVerified = false;
+        private String shapeError = null;
+
+        InterpreterPool(Context context, String modelFile, int maxInterpreters, int[] inputShape) {
+            this.context = context;
+            this.modelFile = modelFile;
+            this.maxInterpreters = maxInterpreters;
+            this.inputShape = inputShape;
+        }
+
+        int[] getInputShape() {
+            return inputShape;
+        }
+
+        // Po wykryciu niezgodnego kształtu pula jest wyłączona na stałe (błąd zalogowany raz, przy wykryciu)
+        synchronized boolean isDisabled() {
+            return shapeError != null;
+        }
+
+        synchronized Interpreter acquire() throws InterruptedException {
+            while (true) {
+                if (closed) throw new IllegalStateException("Pula modelu " + modelFile + " zamknięta");
+                if (shapeError != null) throw new IllegalStateException(shapeError);
+
+                Interpreter interpreter = idle.poll();
+                if (interpreter == null && created < maxInterpreters) {
+                    interpreter = createInterpreter();
+                }
+                if (interpreter != null) {
+                    inUse++;
+                    return interpreter;
+                }
+                wait();
+            }
+        }
+
+        synchronized void release(Interpreter interpreter) {
+            inUse--;
+            lastUsedMs = SystemClock.elapsedRealtime();
+            if (closed) {
+                interpreter.close();
+            } else {
+                idle.push(interpreter);
+            }
+            notifyAll();
+        }
+
+        synchronized void evictIfIdle(long nowMs, long idleMs) {
+            if (inUse > 0 || created == 0 || nowMs - lastUsedMs < idleMs) return;
+            closeIdle();
+            Log.d(TAG, "Model " + modelFile + " zwolniony po bezczynności");
+        }
+
+        synchronized void close() {
+            closed = true;
+            closeIdle();
+            notifyAll();
+        }
+
+        // Wywołujemy tylko gdy nic nie jest wypożyczone (albo pula jest zamykana)
+        private void closeIdle() {
+            Interpreter interpreter;
+            while ((interpreter = idle.poll()) != null) {
+                interpreter.close();
+                created--;
+            }
+            if (created == 0) modelBuffer = null;
+        }
+
+        private Interpreter createInterpreter() {
+            try {
+                if (modelBuffer == null) {
+                    modelBuffer = loadModelFile();
+                    Log.d(TAG, "Model " + modelFile + " załadowany");
+                }
+                Interpreter interpreter = new Interpreter(modelBuffer);
+                if (!shapeVerified) {
+                    int[] modelShape = interpreter.getInputTensor(0).shape();
+                    if (!Arrays.equals(modelShape, inputShape)) {
+                        interpreter.close();
+                        shapeError = "Model " + modelFile + " ma wejście " + Arrays.toString(modelShape)
+                                + ", konfiguracja oczekuje " + Arrays.toString(inputShape);
+                        Log.e(TAG, shapeError);
+                        throw new IllegalStateException(shapeError);
+                    }
+                    shapeVerified = true;
+                }
+                created++;
+                return interpreter;
+            } catch (IOException e) {
+                throw new IllegalStateException("Błąd ładowania modelu " + modelFile, e);
+            }
+        }
+
+        // Ładowanie modelu z folderu assets
+        private MappedByteBuffer loadModelFile() throws IOException {
+            try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(modelFile);
+                 FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+                FileChannel fileChannel = inputStream.getChannel();
+                long startOffset = fileDescriptor.getStartOffset();
+                long declaredLength = fileDescriptor.getDeclaredLength();
+                return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+            }
+        }
+    }
+}
@@ -7,15 +7,12 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.location.Location;
-import android.location.LocationManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.net.TrafficStats;
-import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -27,6 +24,8 @@ import android.telephony.CellInfoLte;
 import android.telephony.CellInfoNr;
 import android.telephony.CellSignalStrengthLte;
 import android.telephony.CellSignalStrengthNr;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyCallback;
 import android.telephony.TelephonyDisplayInfo;
 import android.telephony.TelephonyManager;
@@ -34,7 +33,6 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.core.app.ActivityCompat;
 import androidx.core.app.NotificationCompat;
 
 import org.json.JSONException;
@@ -43,17 +41,32 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * NetworkCollectionService
  * Główny serwis zbierający dane telemetryczne 5G/LTE, parametry środowiskowe
  * oraz wykonujący wnioskowanie (Inference) modelu ML na urządzeniu (Edge AI).
+ *
+ * Każda aktywna subskrypcja (SIM) ma własny SubscriptionCollector z osobnym wątkiem,
+ * więc na telefonach dual-SIM oba stosy modemu są próbkowane równolegle.
  */
 public class NetworkCollectionService extends Service {
 
@@ -62,45 +75,50 @@ public class NetworkCollectionService extends Service {
     private static final String CHANNEL_ID = "NetworkMonitorChannel";
     private static final int NOTIFICATION_ID = 1;
     private static final long POLL_INTERVAL_MS = 1000; // Częstotliwość próbkowania (1s)
-    private static final int AI_WINDOW_SIZE = 10;      // Rozmiar okna przesuwnego dla modelu
-    private static final float AI_ANOMALY_THRESHOLD = 0.15f;
+    private static final int MAX_CELL_WINDOWS = 32;    // Ile okien (komórek) trzymamy na subskrypcję
+    private static final long AI_INFERENCE_TIMEOUT_MS = 500; // Maksymalne oczekiwanie na wyniki modeli w próbce
+    private static final long COVERAGE_PERSIST_INTERVAL_MS = 60_000; // Zapis kafelków pokrycia co minutę
+    private static final int COVERAGE_MAX_LOCATION_AGE_INTERVALS = 3; // Starszy fix nie trafia do kafelków
 
     // --- KOMPONENTY SYSTEMOWE ---
-    private TelephonyManager telephonyManager;
-    private LocationManager locationManager;
-    private SensorManager sensorManager;
+    private SensorHub sensorHub;
+    private TelemetryContext telemetryContext;
     private PowerManager.WakeLock wakeLock;
-    private TelephonyCallback telephonyCallback;
 
     // --- WĄTKI I HANDLERY ---
+    // Wątek serwisu (zadania wspólne, np. zapis kafelków); każda subskrypcja ma własny wątek
     private HandlerThread workerThread;
     private Handler workerHandler;
-    private Runnable pollerTask;
+    private Runnable coveragePersistTask;
+    private final List<SubscriptionCollector> collectors = new ArrayList<>(); // Dostęp pod blokadą na liście
+    private SubscriptionManager subscriptionManager;
+    private SubscriptionManager.OnSubscriptionsChangedListener subscriptionsListener;
 
     // --- ZMIENNE STANU ---
     private FileOutputStream fileOutputStream;
+    private File outputDir;
+    private long sessionStart;
     private boolean isLogging = false;
-    private int currentDisplayNetworkType = TelephonyManager.NETWORK_TYPE_UNKNOWN;
+    private volatile boolean isDestroyed = false;
 
-    // --- SENSORY I METRYKI ---
-    private float currentLightLux = -1.0f;
+    // --- RUCH SIECIOWY (TrafficStats liczy całe urządzenie - jedna linia bazowa dla serwisu) ---
     private long lastRxBytes = 0;
     private long lastTxBytes = 0;
-    private long lastTrafficTime = 0;
+
+    // --- AKTYWNE POMIARY (opcjonalne, włączane przez extras w Intencie START) ---
+    public static final String EXTRA_PROBE_HOST = "probe_host";
+    public static final String EXTRA_PROBE_TCP_PORT = "probe_tcp_port";
+    public static final String EXTRA_PROBE_UDP_PORT = "probe_udp_port";
+    private ActiveProbeEngine probeEngine;
+    private ConnectivityManager.NetworkCallback cellularCallback;
 
     // --- MODUŁ AI ---
-    private AnomalyDetector anomalyDetector;
-    private final LinkedList<float[]> dataWindow = new LinkedList<>();
+    private DetectorRegistry detectorRegistry;
 
-    // --- NASŁUCHIWANIE SENSORÓW ---
-    private final SensorEventListener lightListener = new SensorEventListener() {
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            currentLightLux = event.values[0];
-        }
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) { }
-    };
+    // --- MAPA POKRYCIA ---
+    // Osobne kafelki (i plik) dla każdej subskrypcji - operatorów nie uśredniamy razem.
+    // Mapa przeżywa kolektory, więc ponownie włączona karta SIM dopisuje do swoich kafelków.
+    private final Map<Integer, CoverageTileAggregator> coverageBySubscription = new HashMap<>();
 
     // ============================================================================================
     // CYKL ŻYCIA SERWISU
@@ -129,8 +147,9 @@ public class NetworkCollectionService extends Service {
         startForeground(NOTIFICATION_ID, buildNotification());
 
         if (!isLogging) {
-            registerCallbacks();
-            startActivePolling();
+            setupProbeEngine(intent);
+            startCollectors();
+            startCoveragePersistence();
             isLogging = true;
         }
 
@@ -143,10 +162,26 @@ public class NetworkCollectionService extends Service {
         Log.d(TAG, "Zatrzymywanie serwisu...");
 
         // Zwolnienie zasobów w odwrotnej kolejności
-        if (workerHandler != null && pollerTask != null) workerHandler.removeCallbacks(pollerTask);
-        if (sensorManager != null) sensorManager.unregisterListener(lightListener);
-        if (telephonyCallback != null) telephonyManager.unregisterTelephonyCallback(telephonyCallback);
-        if (anomalyDetector != null) anomalyDetector.close();
+        if (subscriptionManager != null && subscriptionsListener != null) {
+            subscriptionManager.removeOnSubscriptionsChangedListener(subscriptionsListener);
+        }
+        synchronized (collectors) {
+            isDestroyed = true; // Spóźnione onSubscriptionsChanged nie może już startować kolektorów
+            for (SubscriptionCollector collector : collectors) collector.stop();
+            collectors.clear();
+        }
+        if (telemetryContext != null) telemetryContext.stop();
+        if (workerHandler != null && coveragePersistTask != null) {
+            workerHandler.removeCallbacks(coveragePersistTask);
+            // Ostatni zapis kafelków na wątku roboczym (quitSafely wykona go przed zamknięciem pętli)
+            workerHandler.post(this::persistCoverage);
+        }
+        if (sensorHub != null) sensorHub.stop();
+        if (detectorRegistry != null) detectorRegistry.close();
+        if (cellularCallback != null) {
+            getSystemService(ConnectivityManager.class).unregisterNetworkCallback(cellularCallback);
+        }
+        if (probeEngine != null) probeEngine.shutdown();
         if (workerThread != null) workerThread.quitSafely();
 
         if (wakeLock != null && wakeLock.isHeld()) {
@@ -154,10 +189,13 @@ public class NetworkCollectionService extends Service {
             Log.d(TAG, "WakeLock zwolniony.");
         }
 
-        try {
-            if (fileOutputStream != null) fileOutputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        synchronized (this) {
+            try {
+                if (fileOutputStream != null) fileOutputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            fileOutputStream = null;
         }
     }
 
@@ -195,167 +233,625 @@ public class NetworkCollectionService extends Service {
     }
 
     private void setupSystemServices() {
-        telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
-        locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-        sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-
-        // Konfiguracja sensora światła
-        if (sensorManager != null) {
-            Sensor lightSensor = sensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
-            if (lightSensor != null) {
-                sensorManager.registerListener(lightListener, lightSensor, SensorManager.SENSOR_DELAY_NORMAL);
-            }
-        }
+        // Lokalizacja, bateria i uprawnienia - subskrypcja raz, próbki czytają migawki
+        telemetryContext = new TelemetryContext(this, workerHandler, POLL_INTERVAL_MS);
 
-        // Inicjalizacja statystyk ruchu
-        lastRxBytes = TrafficStats.getMobileRxBytes();
-        lastTxBytes = TrafficStats.getMobileTxBytes();
-        lastTrafficTime = System.currentTimeMillis();
+        // Sensory (światło + ruch) z batchingiem w FIFO; postój spowalnia odświeżanie lokalizacji
+        sensorHub = new SensorHub((SensorManager) getSystemService(Context.SENSOR_SERVICE), workerHandler,
+                telemetryContext::setStationaryHint);
+        sensorHub.start();
     }
 
     private void setupAiModule() {
         try {
-            anomalyDetector = new AnomalyDetector(this);
-            Log.d(TAG, "AI: Model załadowany pomyślnie.");
+            // Modele ładują się leniwie przy pierwszej ocenie - tu wczytujemy tylko konfigurację
+            detectorRegistry = new DetectorRegistry(this);
+            Log.d(TAG, "AI: Rejestr modeli gotowy.");
         } catch (IOException e) {
-            Log.e(TAG, "AI: Błąd ładowania modelu TFLite!", e);
+            Log.e(TAG, "AI: Błąd wczytywania konfiguracji modeli!", e);
         }
     }
 
+    private void setupProbeEngine(Intent intent) {
+        String host = intent != null ? intent.getStringExtra(EXTRA_PROBE_HOST) : null;
+        if (host == null || host.isEmpty()) return; // Pomiary aktywne są opcjonalne
+
+        int tcpPort = intent.getIntExtra(EXTRA_PROBE_TCP_PORT, 5201);
+        int udpPort = intent.getIntExtra(EXTRA_PROBE_UDP_PORT, tcpPort);
+        probeEngine = new ActiveProbeEngine(host, tcpPort, udpPort);
+        requestCellularNetwork();
+        Log.d(TAG, "Probe: aktywne pomiary do " + host + ":" + tcpPort);
+    }
+
+    /**
+     * Pomiary muszą iść przez radio, nie przez Wi-Fi - prosimy o sieć komórkową i przypinamy do niej gniazda.
+     * Dopóki sieć nie jest dostępna (albo po jej utracie), silnik pomiarów stoi.
+     */
+    private void requestCellularNetwork() {
+        ConnectivityManager connectivityManager = getSystemService(ConnectivityManager.class);
+        if (connectivityManager == null) return;
+
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+
+        cellularCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                probeEngine.setNetworkBinding(new CellularBinding(network));
+                Log.d(TAG, "Probe: sieć komórkowa dostępna");
+            }
+
+            @Override
+            public void onLost(@NonNull Network network) {
+                probeEngine.setNetworkBinding(null);
+                Log.d(TAG, "Probe: sieć komórkowa utracona - wstrzymuję pomiary");
+            }
+        };
+        connectivityManager.requestNetwork(request, cellularCallback, workerHandler);
+    }
+
     private void setupLogFile() {
         try {
-            File dir = getExternalFilesDir(null);
-            String filename = "data_ml_ready_" + System.currentTimeMillis() + ".jsonl";
-            fileOutputStream = new FileOutputStream(new File(dir, filename), true);
+            outputDir = getExternalFilesDir(null);
+            sessionStart = System.currentTimeMillis();
+            String filename = "data_ml_ready_" + sessionStart + ".jsonl";
+            fileOutputStream = new FileOutputStream(new File(outputDir, filename), true);
         } catch (IOException e) {
             Log.e(TAG, "Błąd tworzenia pliku logów", e);
         }
     }
 
     // ============================================================================================
-    // LOGIKA ZBIERANIA DANYCH (POLLING)
+    // SUBSKRYPCJE (MULTI-SIM)
     // ============================================================================================
 
-    private void registerCallbacks() {
-        if (!hasPermissions()) return;
+    private void startCollectors() {
+        telemetryContext.start();
 
-        telephonyCallback = new MyTelephonyCallback();
-        // Executor delegujący do wątku roboczego
-        Executor serviceExecutor = command -> {
-            if (workerHandler != null) workerHandler.post(command);
-        };
-        telephonyManager.registerTelephonyCallback(serviceExecutor, telephonyCallback);
+        // Inicjalizacja statystyk ruchu
+        sampleDeviceTraffic();
+
+        subscriptionManager = getSystemService(SubscriptionManager.class);
+        reconcileCollectors();
+
+        // Karta SIM / eSIM włączona (lub wyłączona) w trakcie sesji - dopasowujemy kolektory
+        if (subscriptionManager != null) {
+            subscriptionsListener = new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    reconcileCollectors();
+                }
+            };
+            Executor serviceExecutor = command -> {
+                if (workerHandler != null) workerHandler.post(command);
+            };
+            subscriptionManager.addOnSubscriptionsChangedListener(serviceExecutor, subscriptionsListener);
+        }
     }
 
-    private void startActivePolling() {
-        pollerTask = new Runnable() {
+    /**
+     * Utrzymuje dokładnie jeden kolektor na aktywną subskrypcję: startuje nowe, zatrzymuje zniknięte.
+     * Jeśli nie da się ich wyliczyć (brak uprawnień, brak SIM), zbieramy z domyślnego
+     * TelephonyManagera jak wcześniej (kolektor awaryjny).
+     */
+    @android.annotation.SuppressLint("MissingPermission")
+    private void reconcileCollectors() {
+        TelephonyManager defaultManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
+
+        List<SubscriptionInfo> subscriptions = null;
+        if (subscriptionManager != null && hasPermissions()) {
+            subscriptions = subscriptionManager.getActiveSubscriptionInfoList();
+        }
+
+        synchronized (collectors) {
+            if (isDestroyed) return;
+
+            if (subscriptions == null || subscriptions.isEmpty()) {
+                // Brak subskrypcji (np. wyjęte wszystkie SIM) - zostaje tylko kolektor awaryjny
+                Iterator<SubscriptionCollector> it = collectors.iterator();
+                while (it.hasNext()) {
+                    SubscriptionCollector collector = it.next();
+                    if (!collector.isFallback()) {
+                        collector.stop();
+                        it.remove();
+                    }
+                }
+                if (collectors.isEmpty()) {
+                    SubscriptionCollector fallback = new SubscriptionCollector(defaultManager,
+                            SubscriptionManager.getDefaultSubscriptionId(), SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+                    collectors.add(fallback);
+                    fallback.start();
+                }
+                return;
+            }
+
+            // Zatrzymujemy kolektory subskrypcji, których już nie ma (oraz awaryjny)
+            Iterator<SubscriptionCollector> it = collectors.iterator();
+            while (it.hasNext()) {
+                SubscriptionCollector collector = it.next();
+                if (collector.isFallback() || !containsSubscription(subscriptions, collector.subscriptionId)) {
+                    Log.d(TAG, "Subskrypcja zniknęła - zatrzymuję kolektor sub " + collector.subscriptionId);
+                    collector.stop();
+                    it.remove();
+                }
+            }
+
+            // Startujemy kolektory nowych subskrypcji
+            for (SubscriptionInfo info : subscriptions) {
+                int subId = info.getSubscriptionId();
+                if (findCollector(subId) != null) continue;
+
+                SubscriptionCollector collector = new SubscriptionCollector(
+                        defaultManager.createForSubscriptionId(subId), subId, info.getSimSlotIndex());
+                collectors.add(collector);
+                collector.start();
+                Log.d(TAG, "Nowa subskrypcja - startuję kolektor sub " + subId);
+            }
+
+            Log.d(TAG, "Aktywne subskrypcje: " + collectors.size());
+        }
+    }
+
+    // Wołane pod blokadą na collectors
+    private SubscriptionCollector findCollector(int subscriptionId) {
+        for (SubscriptionCollector collector : collectors) {
+            if (!collector.isFallback() && collector.subscriptionId == subscriptionId) return collector;
+        }
+        return null;
+    }
+
+    private static boolean containsSubscription(List<SubscriptionInfo> subscriptions, int subscriptionId) {
+        for (SubscriptionInfo info : subscriptions) {
+            if (info.getSubscriptionId() == subscriptionId) return true;
+        }
+        return false;
+    }
+
+    private void startCoveragePersistence() {
+        coveragePersistTask = new Runnable() {
             @Override
             public void run() {
-                forceModemUpdate();
+                persistCoverage();
                 if (workerHandler != null) {
-                    workerHandler.postDelayed(this, POLL_INTERVAL_MS);
+                    workerHandler.postDelayed(this, COVERAGE_PERSIST_INTERVAL_MS);
                 }
             }
         };
-        workerHandler.post(pollerTask);
+        workerHandler.postDelayed(coveragePersistTask, COVERAGE_PERSIST_INTERVAL_MS);
     }
 
-    private void forceModemUpdate() {
-        // Sprawdzenie bezpieczeństwa - bez uprawnień kończymy działanie tej metody
-        if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            Log.w(TAG, "Brak uprawnień lokalizacyjnych - pomijam Active Poll");
-            return;
+    private void persistCoverage() {
+        synchronized (coverageBySubscription) {
+            for (Map.Entry<Integer, CoverageTileAggregator> entry : coverageBySubscription.entrySet()) {
+                CoverageTileAggregator aggregator = entry.getValue();
+                synchronized (aggregator) {
+                    aggregator.persist(getCoverageFile(entry.getKey()));
+                }
+            }
         }
+    }
 
-        // Dla Androida 10+ (Q) wymuszamy odświeżenie
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            Executor executor = command -> {
-                if (workerHandler != null) workerHandler.post(command);
-            };
+    private CoverageTileAggregator getCoverageAggregator(int subscriptionId) {
+        synchronized (coverageBySubscription) {
+            CoverageTileAggregator aggregator = coverageBySubscription.get(subscriptionId);
+            if (aggregator == null) {
+                aggregator = new CoverageTileAggregator();
+                coverageBySubscription.put(subscriptionId, aggregator);
+            }
+            return aggregator;
+        }
+    }
 
-            try {
-                telephonyManager.requestCellInfoUpdate(executor, new TelephonyManager.CellInfoCallback() {
+    private File getCoverageFile(int subscriptionId) {
+        if (outputDir == null) return null;
+        return new File(outputDir, "coverage_tiles_" + sessionStart + "_sub" + subscriptionId + ".jsonl");
+    }
+
+    /**
+     * SubscriptionCollector
+     * Stan i pętla zbierania danych jednej subskrypcji: własny TelephonyManager, callbacki,
+     * harmonogram odpytywania, okna AI per komórka. Każdy kolektor działa na własnym wątku,
+     * więc wolny modem jednej karty SIM nie blokuje drugiej.
+     */
+    private class SubscriptionCollector {
+
+        private final TelephonyManager telephonyManager;
+        private final int subscriptionId;
+        private final int simSlotIndex;
+        private final CoverageTileAggregator coverageAggregator;
+
+        private HandlerThread collectorThread;
+        private Handler collectorHandler;
+        private Runnable pollerTask;
+        private TelephonyCallback telephonyCallback;
+
+        // Stan dostępny tylko z wątku kolektora (callbacki idą przez ten sam executor)
+        private int currentDisplayNetworkType = TelephonyManager.NETWORK_TYPE_UNKNOWN;
+        private long lastTrafficDelta = 0;
+
+        // Okna przesuwne per komórka (klucz: typ + identyfikatory), najdawniej używane wypadają
+        private final Map<String, LinkedList<float[]>> cellWindows =
+                new LinkedHashMap<String, LinkedList<float[]>>(16, 0.75f, true) {
                     @Override
-                    public void onCellInfo(@NonNull List<CellInfo> cellInfo) {
-                        processAndSaveData(cellInfo, "ActivePoll");
+                    protected boolean removeEldestEntry(Map.Entry<String, LinkedList<float[]>> eldest) {
+                        return size() > MAX_CELL_WINDOWS;
                     }
+                };
 
-                    @Override
-                    public void onError(int errorCode, @Nullable Throwable detail) {
-                        Log.w(TAG, "Błąd modemu (ActivePoll code): " + errorCode);
+        SubscriptionCollector(TelephonyManager telephonyManager, int subscriptionId, int simSlotIndex) {
+            this.telephonyManager = telephonyManager;
+            this.subscriptionId = subscriptionId;
+            this.simSlotIndex = simSlotIndex;
+            this.coverageAggregator = getCoverageAggregator(subscriptionId);
+        }
+
+        void start() {
+            collectorThread = new HandlerThread("NetworkCollector-sub" + subscriptionId);
+            collectorThread.start();
+            collectorHandler = new Handler(collectorThread.getLooper());
+
+            registerCallbacks();
+            startActivePolling();
+        }
+
+        boolean isFallback() {
+            return simSlotIndex == SubscriptionManager.INVALID_SIM_SLOT_INDEX;
+        }
+
+        void stop() {
+            if (collectorHandler != null && pollerTask != null) collectorHandler.removeCallbacks(pollerTask);
+            if (telephonyCallback != null) telephonyManager.unregisterTelephonyCallback(telephonyCallback);
+            if (collectorThread != null) collectorThread.quitSafely();
+            collectorHandler = null;
+        }
+
+        // ========================================================================================
+        // LOGIKA ZBIERANIA DANYCH (POLLING)
+        // ========================================================================================
+
+        private Executor collectorExecutor() {
+            // Executor delegujący do wątku kolektora
+            return command -> {
+                Handler handler = collectorHandler;
+                if (handler != null) handler.post(command);
+            };
+        }
+
+        private void registerCallbacks() {
+            if (!hasPermissions()) return;
+
+            telephonyCallback = new MyTelephonyCallback();
+            telephonyManager.registerTelephonyCallback(collectorExecutor(), telephonyCallback);
+        }
+
+        private void startActivePolling() {
+            pollerTask = new Runnable() {
+                @Override
+                public void run() {
+                    forceModemUpdate();
+                    Handler handler = collectorHandler;
+                    if (handler != null) {
+                        handler.postDelayed(this, POLL_INTERVAL_MS);
                     }
-                });
+                }
+            };
+            collectorHandler.post(pollerTask);
+        }
+
+        private void forceModemUpdate() {
+            // Sprawdzenie bezpieczeństwa - bez uprawnień kończymy działanie tej metody
+            if (!telemetryContext.hasLocationPermission()) {
+                Log.w(TAG, "Brak uprawnień lokalizacyjnych - pomijam Active Poll");
+                return;
+            }
+
+            // Dla Androida 10+ (Q) wymuszamy odświeżenie
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                try {
+                    telephonyManager.requestCellInfoUpdate(collectorExecutor(), new TelephonyManager.CellInfoCallback() {
+                        @Override
+                        public void onCellInfo(@NonNull List<CellInfo> cellInfo) {
+                            processAndSaveData(cellInfo, "ActivePoll");
+                        }
+
+                        @Override
+                        public void onError(int errorCode, @Nullable Throwable detail) {
+                            Log.w(TAG, "Błąd modemu (ActivePoll code, sub " + subscriptionId + "): " + errorCode);
+                        }
+                    });
+                } catch (Exception e) {
+                    Log.e(TAG, "Wyjątek przy requestCellInfoUpdate", e);
+                }
+            } else {
+                // Dla starszych Androidów bierzemy dane z cache
+                processAndSaveData(telephonyManager.getAllCellInfo(), "LegacyPoll");
+            }
+        }
+
+        // ========================================================================================
+        // PRZETWARZANIE I ZAPIS DANYCH
+        // ========================================================================================
+
+        private void processAndSaveData(List<CellInfo> cellInfoList, String trigger) {
+            if (!hasPermissions()) return;
+
+            try {
+                JSONObject json = new JSONObject();
+                long now = System.currentTimeMillis();
+
+                // 1. Metadane podstawowe
+                json.put("timestamp_epoch", now);
+                json.put("timestamp_human", new SimpleDateFormat("HH:mm:ss.SSS", Locale.getDefault()).format(new Date(now)));
+                json.put("trigger", trigger);
+                json.put("subscription_id", subscriptionId);
+                json.put("sim_slot", simSlotIndex);
+
+                // 2. Zbieranie danych telemetrycznych (Bateria, GPS, Ruch, Światło)
+                gatherTelemetry(json);
+
+                // 2b. Aktywne pomiary - ruch idzie przez subskrypcję danych, więc tylko tam zlecamy i dopisujemy wynik
+                if (probeEngine != null && isDataSubscription()) {
+                    probeEngine.maybeRun(lastTrafficDelta > 0, now);
+                    ActiveProbeEngine.ProbeResult probe = probeEngine.pollResult();
+                    if (probe != null) {
+                        json.put("probe", probeResultToJson(probe));
+                    }
+                }
+
+                // 3. Przetwarzanie komórek i logika AI
+                if (cellInfoList != null) {
+                    processCells(cellInfoList, json, now);
+                    updateCoverage(json, coverageAggregator);
+                }
+
+                // 4. Zapis do pliku
+                writeToJsonFile(json);
+
             } catch (Exception e) {
-                Log.e(TAG, "Wyjątek przy requestCellInfoUpdate", e);
+                Log.e(TAG, "Błąd w pętli przetwarzania danych", e);
             }
-        } else {
-            // Dla starszych Androidów bierzemy dane z cache
-            processAndSaveData(telephonyManager.getAllCellInfo(), "LegacyPoll");
         }
-    }
 
-    // ============================================================================================
-    // PRZETWARZANIE I ZAPIS DANYCH
-    // ============================================================================================
+        @android.annotation.SuppressLint("MissingPermission")
+        private void gatherTelemetry(JSONObject json) throws JSONException {
+            // Bateria (migawka ze sticky broadcastu)
+            TelemetryContext.BatterySnapshot battery = telemetryContext.getBattery();
+            if (battery != null) {
+                json.put("battery_level", battery.levelPercent);
+                if (!Float.isNaN(battery.temperatureC)) json.put("battery_temp_c", battery.temperatureC);
+                json.put("is_charging", battery.isCharging);
+            }
+
+            // Stan sieci (Teraz kod jest czysty)
+            json.put("network_type_raw", telephonyManager.getDataNetworkType());
+            json.put("network_type_refined", getRefinedNetworkType(telephonyManager.getDataNetworkType(), currentDisplayNetworkType));
+            json.put("is_5g_nsa", currentDisplayNetworkType == TelephonyDisplayInfo.OVERRIDE_NETWORK_TYPE_NR_NSA);
+
+            // Sensory: światło (Lux) i ruch - podsumowanie ostatniego okna z paczki FIFO
+            SensorHub.SensorSummary sensors = sensorHub.getSummary();
+            json.put("light_lux", sensors.meanLux);
+            if (!Float.isNaN(sensors.motionEnergy)) json.put("motion_energy", sensors.motionEnergy);
+            json.put("is_stationary", sensorHub.isStationary());
+            json.put("sensor_summary_age_ms", sensors.getAgeMs());
+
+            // GPS (Prędkość) - tu zostawiamy IF, bo to osobne uprawnienie lokalizacyjne
+            if (telemetryContext.hasLocationPermission()) {
+                TelemetryContext.LocationSnapshot loc = telemetryContext.getLocation();
+
+                if (loc != null) {
+                    json.put("speed_kmh", loc.speedMps * 3.6);
+                    json.put("gps_lat", loc.latitude);
+                    json.put("gps_lng", loc.longitude);
+                    json.put("location_age_ms", loc.getAgeMs());
+                    // Razem z wiekiem pozwala odsiać zgrubne fixy (np. z sieci zamiast GPS)
+                    json.put("location_accuracy_m", loc.accuracyM >= 0 ? loc.accuracyM : JSONObject.NULL);
+                    json.put("location_provider", loc.provider != null ? loc.provider : JSONObject.NULL);
+                } else {
+                    json.put("speed_kmh", 0.0);
+                }
+            }
 
-    private void processAndSaveData(List<CellInfo> cellInfoList, String trigger) {
-        if (!hasPermissions()) return;
+            // Ruch sieciowy - licznik całego urządzenia, więc dopisujemy go tylko do rekordów subskrypcji danych
+            // (bez podwójnego liczenia przy dual-SIM) i oznaczamy jako "device"
+            if (isDataSubscription()) {
+                long[] delta = sampleDeviceTraffic();
+                json.put("traffic_rx_bytes", delta[0]);
+                json.put("traffic_tx_bytes", delta[1]);
+                json.put("traffic_scope", "device");
+                lastTrafficDelta = delta[0] + delta[1];
+            }
+        }
 
-        try {
-            JSONObject json = new JSONObject();
-            long now = System.currentTimeMillis();
+        // Kolektor awaryjny (bez listy subskrypcji) obsługuje wszystko, co dawniej robił serwis
+        private boolean isDataSubscription() {
+            return isFallback() || subscriptionId == SubscriptionManager.getDefaultDataSubscriptionId();
+        }
 
-            // 1. Metadane podstawowe
-            json.put("timestamp_epoch", now);
-            json.put("timestamp_human", new SimpleDateFormat("HH:mm:ss.SSS", Locale.getDefault()).format(new Date(now)));
-            json.put("trigger", trigger);
+        private void processCells(List<CellInfo> cellInfoList, JSONObject json, long now) throws JSONException {
+            org.json.JSONArray cellsArray = new org.json.JSONArray();
+            List<PendingScore> pendingScores = new ArrayList<>();
+
+            for (CellInfo cell : cellInfoList) {
+                JSONObject cellData = new JSONObject();
+                cellData.put("is_registered", cell.isRegistered());
+                cellData.put("timestamp", now);
+
+                // Zmienne pomocnicze dla AI
+                float aiRsrp = -140.0f;
+                float aiRsrq = -20.0f;
+                float aiSinr = -10.0f;
+                boolean readyForAi = false;
+                String cellKey = null;
+                String aiRoute = null;
+
+                // --- LOGIKA 5G NR ---
+                if (cell instanceof CellInfoNr) {
+                    CellInfoNr nr = (CellInfoNr) cell;
+                    CellSignalStrengthNr signal = (CellSignalStrengthNr) nr.getCellSignalStrength();
+                    cellData.put("type", "5G_NR");
+
+                    if (nr.getCellIdentity() instanceof CellIdentityNr) {
+                        CellIdentityNr id = (CellIdentityNr) nr.getCellIdentity();
+                        putSafe(cellData, "pci", id.getPci());
+                        putSafe(cellData, "nci", (int) id.getNci());
+                        cellKey = "NR_" + id.getPci() + "_" + id.getNci();
+                    }
+                    putSafe(cellData, "rsrp", signal.getSsRsrp());
+                    putSafe(cellData, "rsrq", signal.getSsRsrq());
+                    putSafe(cellData, "sinr", signal.getSsSinr());
+
+                    if (cell.isRegistered() && isValid(signal.getSsRsrp())) {
+                        aiRsrp = signal.getSsRsrp();
+                        aiRsrq = signal.getSsRsrq();
+                        aiSinr = isValid(signal.getSsSinr()) ? signal.getSsSinr() : -10.0f;
+                        aiRoute = DetectorRegistry.ROUTE_5G_NR;
+                        readyForAi = true;
+                    }
+                }
+                // --- LOGIKA LTE ---
+                else if (cell instanceof CellInfoLte) {
+                    CellInfoLte lte = (CellInfoLte) cell;
+                    CellSignalStrengthLte signal = lte.getCellSignalStrength();
+                    cellData.put("type", "LTE");
+
+                    putSafe(cellData, "pci", lte.getCellIdentity().getPci());
+                    putSafe(cellData, "earfcn", lte.getCellIdentity().getEarfcn());
+                    putSafe(cellData, "rsrp", signal.getRsrp());
+                    putSafe(cellData, "rsrq", signal.getRsrq());
+                    putSafe(cellData, "rssnr", signal.getRssnr());
+                    putSafe(cellData, "cqi", signal.getCqi());
+                    putSafe(cellData, "timing_advance", signal.getTimingAdvance());
+                    cellKey = "LTE_" + lte.getCellIdentity().getPci() + "_" + lte.getCellIdentity().getEarfcn();
+
+                    // LTE jako kotwica dla NSA - używamy do AI
+                    if (cell.isRegistered() && isValid(signal.getRsrp())) {
+                        aiRsrp = signal.getRsrp();
+                        aiRsrq = signal.getRsrq();
+                        aiSinr = isValid(signal.getRssnr()) ? signal.getRssnr() : 0.0f;
+                        aiRoute = isNsaActive() ? DetectorRegistry.ROUTE_NSA_ANCHOR : DetectorRegistry.ROUTE_LTE;
+                        readyForAi = true;
+                    }
+                }
 
-            // 2. Zbieranie danych telemetrycznych (Bateria, GPS, Ruch, Światło)
-            gatherTelemetry(json);
+                // --- WNIOSKOWANIE AI (EDGE INFERENCE) ---
+                if (readyForAi && detectorRegistry != null) {
+                    PendingScore pending = runAiAnalysis(cellKey != null ? cellKey : cellData.getString("type"),
+                            aiRoute, cellData, aiRsrp, aiRsrq, aiSinr);
+                    if (pending != null) pendingScores.add(pending);
+                }
 
-            // 3. Przetwarzanie komórek i logika AI
-            if (cellInfoList != null) {
-                processCells(cellInfoList, json, now);
+                if (cellData.has("type")) {
+                    cellsArray.put(cellData);
+                }
             }
 
-            // 4. Zapis do pliku
-            writeToJsonFile(json);
+            // Modele liczą równolegle na puli inferencji - zbieramy wyniki przed zapisem próbki
+            long deadlineNs = System.nanoTime() + AI_INFERENCE_TIMEOUT_MS * 1_000_000L;
+            for (PendingScore pending : pendingScores) {
+                collectAiScore(pending, deadlineNs);
+            }
+            json.put("cells", cellsArray);
+        }
+
+        /**
+         * Dopisuje próbkę do okna komórki i, gdy okno jest pełne, zleca ocenę modelowi właściwemu dla trasy.
+         * @return Oczekujący wynik albo null (brak modelu lub okno jeszcze się zapełnia)
+         */
+        private PendingScore runAiAnalysis(String cellKey, String route, JSONObject cellData,
+                                           float rsrp, float rsrq, float sinr) throws JSONException {
+            AnomalyDetector detector = detectorRegistry.getDetector(route);
+            if (detector == null) {
+                // Brak modelu dla trasy albo model wyłączony - nie zlecamy pracy
+                cellData.put("ai_status", "UNAVAILABLE");
+                return null;
+            }
+
+            // Kolejność zgodna z "features" modelu (sprawdzana przez DetectorRegistry przy wczytaniu konfiguracji)
+            float[] features = new float[]{rsrp, rsrq, sinr};
 
-        } catch (Exception e) {
-            Log.e(TAG, "Błąd w pętli przetwarzania danych", e);
+            LinkedList<float[]> dataWindow = cellWindows.get(cellKey);
+            if (dataWindow == null) {
+                dataWindow = new LinkedList<>();
+                cellWindows.put(cellKey, dataWindow);
+            }
+
+            dataWindow.add(features);
+            if (dataWindow.size() > detectorRegistry.getMaxWindowSize()) {
+                dataWindow.removeFirst();
+            }
+
+            cellData.put("ai_model", route);
+            int windowSize = detector.getWindowSize();
+            if (dataWindow.size() < windowSize) {
+                cellData.put("ai_status", "BUFFERING");
+                return null;
+            }
+
+            // Konwersja ostatnich windowSize próbek na macierz [windowSize][3]
+            float[][] windowArray = new float[windowSize][];
+            int offset = dataWindow.size() - windowSize;
+            for (int i = 0; i < windowSize; i++) {
+                windowArray[i] = dataWindow.get(offset + i);
+            }
+
+            return new PendingScore(cellData, detector, detectorRegistry.submit(detector, windowArray));
         }
-    }
-    @android.annotation.SuppressLint("MissingPermission")
-    private void gatherTelemetry(JSONObject json) throws JSONException {
-        // Bateria
-        BatteryManager bm = (BatteryManager) getSystemService(BATTERY_SERVICE);
-        if (bm != null) {
-            json.put("battery_level", bm.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY));
-        }
-
-        // Stan sieci (Teraz kod jest czysty)
-        json.put("network_type_raw", telephonyManager.getDataNetworkType());
-        json.put("network_type_refined", getRefinedNetworkType(telephonyManager.getDataNetworkType(), currentDisplayNetworkType));
-        json.put("is_5g_nsa", currentDisplayNetworkType == TelephonyDisplayInfo.OVERRIDE_NETWORK_TYPE_NR_NSA);
-
-        // Światło (Lux)
-        json.put("light_lux", currentLightLux);
-
-        // GPS (Prędkość) - tu zostawiamy IF, bo to osobne uprawnienie lokalizacyjne
-        if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
-            Location loc = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-            if (loc == null) loc = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
-
-            if (loc != null) {
-                json.put("speed_kmh", loc.getSpeed() * 3.6);
-                json.put("gps_lat", loc.getLatitude());
-                json.put("gps_lng", loc.getLongitude());
-            } else {
-                json.put("speed_kmh", 0.0);
+
+        private void collectAiScore(PendingScore pending, long deadlineNs) throws JSONException {
+            float anomalyScore;
+            try {
+                long remainingNs = Math.max(0, deadlineNs - System.nanoTime());
+                anomalyScore = pending.score.get(remainingNs, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                pending.score.cancel(true);
+                pending.cellData.put("ai_status", "TIMEOUT");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                if (!pending.detector.isAvailable()) {
+                    // Model właśnie wyłączony - przyczynę zalogował rejestr, kolejne próbki już go nie wołają
+                    pending.cellData.put("ai_status", "UNAVAILABLE");
+                    return;
+                }
+                Log.e(TAG, "AI: Błąd inferencji modelu " + pending.detector.getRoute(), e.getCause());
+                pending.cellData.put("ai_status", "ERROR");
+                return;
+            }
+
+            pending.cellData.put("ai_anomaly_score", anomalyScore);
+            boolean isAnomaly = anomalyScore > pending.detector.getThreshold();
+            pending.cellData.put("ai_status", isAnomaly ? "ANOMALY" : "NORMAL");
+
+            if (isAnomaly) {
+                Log.w(TAG, "!!! WYKRYTO ANOMALIĘ !!! Sub: " + subscriptionId + " Model: " + pending.detector.getRoute() + " Score: " + anomalyScore);
             }
         }
 
-        // Ruch sieciowy
+        // LTE z nakładką NR (NSA) - komórka LTE jest kotwicą i ma osobny model
+        private boolean isNsaActive() {
+            return currentDisplayNetworkType == TelephonyDisplayInfo.OVERRIDE_NETWORK_TYPE_NR_NSA
+                    || currentDisplayNetworkType == TelephonyDisplayInfo.OVERRIDE_NETWORK_TYPE_NR_ADVANCED;
+        }
+
+        // Klasa wewnętrzna do Callbacków (wymagana przez API)
+        private class MyTelephonyCallback extends TelephonyCallback implements
+                TelephonyCallback.DisplayInfoListener {
+            @Override
+            public void onDisplayInfoChanged(@NonNull TelephonyDisplayInfo displayInfo) {
+                currentDisplayNetworkType = displayInfo.getOverrideNetworkType();
+            }
+        }
+    }
+
+    /**
+     * Delta mobilnego ruchu całego urządzenia od poprzedniego wywołania: {rx, tx}.
+     * Woła ją tylko kolektor subskrypcji danych; synchronized, bo ta może się zmienić w trakcie sesji.
+     */
+    private synchronized long[] sampleDeviceTraffic() {
         long currentRx = TrafficStats.getMobileRxBytes();
         long currentTx = TrafficStats.getMobileTxBytes();
 
@@ -372,130 +868,134 @@ public class NetworkCollectionService extends Service {
             deltaTx = currentTx - lastTxBytes;
         }
 
-        json.put("traffic_rx_bytes", deltaRx);
-        json.put("traffic_tx_bytes", deltaTx);
-
         lastRxBytes = currentRx;
         lastTxBytes = currentTx;
+        return new long[]{deltaRx, deltaTx};
     }
 
-    private void processCells(List<CellInfo> cellInfoList, JSONObject json, long now) throws JSONException {
-        org.json.JSONArray cellsArray = new org.json.JSONArray();
+    // Gniazda pomiarów przypięte do konkretnej sieci (komórkowej)
+    private static class CellularBinding implements ActiveProbeEngine.NetworkBinding {
+        private final Network network;
 
-        for (CellInfo cell : cellInfoList) {
-            JSONObject cellData = new JSONObject();
-            cellData.put("is_registered", cell.isRegistered());
-            cellData.put("timestamp", now);
+        CellularBinding(Network network) {
+            this.network = network;
+        }
 
-            // Zmienne pomocnicze dla AI
-            float aiRsrp = -140.0f;
-            float aiRsrq = -20.0f;
-            float aiSinr = -10.0f;
-            boolean readyForAi = false;
+        @Override
+        public Socket createSocket() throws IOException {
+            return network.getSocketFactory().createSocket();
+        }
 
-            // --- LOGIKA 5G NR ---
-            if (cell instanceof CellInfoNr) {
-                CellInfoNr nr = (CellInfoNr) cell;
-                CellSignalStrengthNr signal = (CellSignalStrengthNr) nr.getCellSignalStrength();
-                cellData.put("type", "5G_NR");
+        @Override
+        public void bindSocket(DatagramSocket socket) throws IOException {
+            network.bindSocket(socket);
+        }
 
-                if (nr.getCellIdentity() instanceof CellIdentityNr) {
-                    CellIdentityNr id = (CellIdentityNr) nr.getCellIdentity();
-                    putSafe(cellData, "pci", id.getPci());
-                    putSafe(cellData, "nci", (int) id.getNci());
-                }
-                putSafe(cellData, "rsrp", signal.getSsRsrp());
-                putSafe(cellData, "rsrq", signal.getSsRsrq());
-                putSafe(cellData, "sinr", signal.getSsSinr());
-
-                if (cell.isRegistered() && isValid(signal.getSsRsrp())) {
-                    aiRsrp = signal.getSsRsrp();
-                    aiRsrq = signal.getSsRsrq();
-                    aiSinr = isValid(signal.getSsSinr()) ? signal.getSsSinr() : -10.0f;
-                    readyForAi = true;
-                }
-            }
-            // --- LOGIKA LTE ---
-            else if (cell instanceof CellInfoLte) {
-                CellInfoLte lte = (CellInfoLte) cell;
-                CellSignalStrengthLte signal = lte.getCellSignalStrength();
-                cellData.put("type", "LTE");
-
-                putSafe(cellData, "pci", lte.getCellIdentity().getPci());
-                putSafe(cellData, "earfcn", lte.getCellIdentity().getEarfcn());
-                putSafe(cellData, "rsrp", signal.getRsrp());
-                putSafe(cellData, "rsrq", signal.getRsrq());
-                putSafe(cellData, "rssnr", signal.getRssnr());
-                putSafe(cellData, "cqi", signal.getCqi());
-                putSafe(cellData, "timing_advance", signal.getTimingAdvance());
-
-                // LTE jako kotwica dla NSA - używamy do AI
-                if (cell.isRegistered() && isValid(signal.getRsrp())) {
-                    aiRsrp = signal.getRsrp();
-                    aiRsrq = signal.getRsrq();
-                    aiSinr = isValid(signal.getRssnr()) ? signal.getRssnr() : 0.0f;
-                    readyForAi = true;
-                }
-            }
+        @Override
+        public InetAddress resolve(String host) throws IOException {
+            return network.getByName(host);
+        }
+    }
 
-            // --- WNIOSKOWANIE AI (EDGE INFERENCE) ---
-            if (readyForAi && anomalyDetector != null) {
-                runAiAnalysis(cellData, aiRsrp, aiRsrq, aiSinr);
-            }
+    // Ocena zlecona na puli inferencji, jeszcze nie dopisana do komórki
+    private static class PendingScore {
+        final JSONObject cellData;
+        final AnomalyDetector detector;
+        final Future<Float> score;
 
-            if (cellData.has("type")) {
-                cellsArray.put(cellData);
-            }
+        PendingScore(JSONObject cellData, AnomalyDetector detector, Future<Float> score) {
+            this.cellData = cellData;
+            this.detector = detector;
+            this.score = score;
         }
-        json.put("cells", cellsArray);
     }
 
-    private void runAiAnalysis(JSONObject cellData, float rsrp, float rsrq, float sinr) throws JSONException {
-        float[] features = new float[]{rsrp, rsrq, sinr};
-
-        synchronized (dataWindow) {
-            dataWindow.add(features);
-            if (dataWindow.size() > AI_WINDOW_SIZE) {
-                dataWindow.removeFirst();
+    /**
+     * Dopisuje próbkę komórki obsługującej do kafelka pokrycia (tylko gdy mamy świeżą pozycję GPS).
+     * W 5G NSA do kafelka trafia komórka NR, a nie zarejestrowana kotwica LTE.
+     * Fix starszy niż kilka interwałów lokalizacji (np. z cache po starcie albo po utracie GPS w tunelu)
+     * przypisałby pomiar do kafelka, w którym urządzenia już nie ma - takie próbki pomijamy.
+     */
+    private void updateCoverage(JSONObject json, CoverageTileAggregator coverageAggregator) {
+        double lat = json.optDouble("gps_lat", Double.NaN);
+        double lng = json.optDouble("gps_lng", Double.NaN);
+        if (Double.isNaN(lat) || Double.isNaN(lng)) return;
+
+        long maxAgeMs = COVERAGE_MAX_LOCATION_AGE_INTERVALS
+                * Math.max(POLL_INTERVAL_MS, telemetryContext.getLocationIntervalMs());
+        if (json.optLong("location_age_ms", Long.MAX_VALUE) > maxAgeMs) return;
+
+        int tech = getCoverageTech(json.optInt("network_type_raw"), json.optString("network_type_refined"));
+        if (tech < 0) return;
+
+        org.json.JSONArray cells = json.optJSONArray("cells");
+        if (cells == null) return;
+
+        JSONObject servingCell = null;
+        JSONObject nrCell = null;
+        for (int i = 0; i < cells.length(); i++) {
+            JSONObject cell = cells.optJSONObject(i);
+            if (cell == null || cell.isNull("rsrp")) continue;
+
+            if (servingCell == null && cell.optBoolean("is_registered")) servingCell = cell;
+            // W NSA komórka NR zwykle ma is_registered=false - bierzemy zarejestrowaną, a jeśli jej nie ma, najsilniejszą
+            if (tech == CoverageTileAggregator.TECH_5G_NSA && "5G_NR".equals(cell.optString("type"))
+                    && (nrCell == null || isBetterNrCell(cell, nrCell))) {
+                nrCell = cell;
             }
+        }
 
-            if (dataWindow.size() == AI_WINDOW_SIZE) {
-                // Konwersja listy na macierz [10][3]
-                float[][] windowArray = new float[AI_WINDOW_SIZE][3];
-                for (int i = 0; i < AI_WINDOW_SIZE; i++) {
-                    windowArray[i] = dataWindow.get(i);
-                }
-
-                // Wykonanie predykcji
-                float anomalyScore = anomalyDetector.analyze(windowArray);
+        // Kafelek 5G_NSA ma pokazywać poziomy NR; LTE kotwicy tylko wtedy, gdy modem nie raportuje warstwy NR
+        JSONObject measuredCell = nrCell != null ? nrCell : servingCell;
+        if (measuredCell == null) return;
 
-                cellData.put("ai_anomaly_score", anomalyScore);
-                boolean isAnomaly = anomalyScore > AI_ANOMALY_THRESHOLD;
-                cellData.put("ai_status", isAnomaly ? "ANOMALY" : "NORMAL");
+        String sinrKey = "LTE".equals(measuredCell.optString("type")) ? "rssnr" : "sinr";
+        float sinr = measuredCell.isNull(sinrKey) ? Float.NaN : (float) measuredCell.optDouble(sinrKey);
+        // Ocenę AI ma komórka zarejestrowana (w NSA - kotwica), więc anomalię bierzemy z obu
+        boolean isAnomaly = "ANOMALY".equals(measuredCell.optString("ai_status"))
+                || (servingCell != null && "ANOMALY".equals(servingCell.optString("ai_status")));
 
-                if (isAnomaly) {
-                    Log.w(TAG, "!!! WYKRYTO ANOMALIĘ !!! Score: " + anomalyScore);
-                }
-            } else {
-                cellData.put("ai_status", "BUFFERING");
-            }
+        // Kafelki tej subskrypcji; blokada, bo zapis okresowy idzie z wątku serwisu
+        synchronized (coverageAggregator) {
+            coverageAggregator.record(lat, lng, tech, (float) measuredCell.optDouble("rsrp"), sinr, isAnomaly);
         }
     }
 
+    private static boolean isBetterNrCell(JSONObject candidate, JSONObject current) {
+        boolean candidateRegistered = candidate.optBoolean("is_registered");
+        if (candidateRegistered != current.optBoolean("is_registered")) return candidateRegistered;
+        return candidate.optDouble("rsrp") > current.optDouble("rsrp");
+    }
+
     // ============================================================================================
     // METODY POMOCNICZE (UTILS)
     // ============================================================================================
 
-    private void writeToJsonFile(JSONObject json) throws IOException {
+    // Plik jest wspólny dla wszystkich subskrypcji - zapis całej linii pod blokadą
+    private synchronized void writeToJsonFile(JSONObject json) throws IOException {
         if (fileOutputStream != null) {
             fileOutputStream.write((json.toString() + "\n").getBytes());
             // fileOutputStream.flush(); // Można odkomentować dla debugowania, ale częsty flush zużywa I/O
         }
     }
 
+    private JSONObject probeResultToJson(ActiveProbeEngine.ProbeResult probe) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("timestamp", probe.timestampMs);
+        json.put("tcp_connect_rtt_ms", probe.tcpConnectRttMs);
+        json.put("udp_rtt_ms", probe.udpRttMs);
+        json.put("udp_pings_sent", probe.udpPingsSent);
+        json.put("udp_pings_lost", probe.udpPingsLost);
+        json.put("download_bytes", probe.downloadBytes);
+        json.put("download_kbps", probe.downloadKbps);
+        json.put("upload_bytes", probe.uploadBytes);
+        json.put("upload_kbps", probe.uploadKbps);
+        json.put("error", probe.error != null ? probe.error : JSONObject.NULL);
+        return json;
+    }
+
     private boolean hasPermissions() {
-        return ActivityCompat.checkSelfPermission(this, android.Manifest.permission.READ_PHONE_STATE) == PackageManager.PERMISSION_GRANTED &&
-                ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+        return telemetryContext.hasPermissions();
     }
 
     private void putSafe(JSONObject json, String key, int value) throws JSONException {
@@ -519,6 +1019,13 @@ public class NetworkCollectionService extends Service {
         return "OTHER";
     }
 
+    private int getCoverageTech(int rawType, String refinedType) {
+        if ("5G_SA".equals(refinedType)) return CoverageTileAggregator.TECH_5G_SA;
+        if ("5G_NSA".equals(refinedType) || "5G_MMWAVE".equals(refinedType)) return CoverageTileAggregator.TECH_5G_NSA;
+        if (rawType == TelephonyManager.NETWORK_TYPE_LTE) return CoverageTileAggregator.TECH_LTE;
+        return -1;
+    }
+
     private Notification buildNotification() {
         Intent stopIntent = new Intent(this, NetworkCollectionService.class);
         stopIntent.setAction("STOP");
@@ -531,13 +1038,4 @@ public class NetworkCollectionService extends Service {
                 .addAction(android.R.drawable.ic_menu_close_clear_cancel, "Zatrzymaj", stopPendingIntent)
                 .build();
     }
-
-    // Klasa wewnętrzna do Callbacków (wymagana przez API)
-    private class MyTelephonyCallback extends TelephonyCallback implements
-            TelephonyCallback.DisplayInfoListener {
-        @Override
-        public void onDisplayInfoChanged(@NonNull TelephonyDisplayInfo displayInfo) {
-            currentDisplayNetworkType = displayInfo.getOverrideNetworkType();
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,214 @@
+package com.example.connection;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * SensorHub
+ * Sensory środowiskowe z batchingiem w sprzętowym FIFO (maxReportLatencyUs), żeby CPU nie budziło się
+ * przy każdym zdarzeniu. Zdarzenia z paczek agregujemy w okna SUMMARY_WINDOW_MS (średnie lux, energia ruchu)
+ * i publikujemy jako niezmienną migawkę w polu volatile - próbki czytają ją bez blokad.
+ *
+ * Dodatkowo wystawiamy sygnał "stationary" (brak ruchu przez STATIONARY_HOLD_MS), którego inne części
+ * serwisu mogą używać do ograniczania pracy. Significant motion (sensor wyzwalany) natychmiast kończy postój.
+ * Wszystkie callbacki idą na wątek przekazanego Handlera.
+ */
+public class SensorHub {
+
+    private static final String TAG = "SensorHub";
+
+    // --- PARAMETRY BATCHINGU ---
+    private static final int BATCH_LATENCY_US = 5_000_000;      // FIFO oddaje zdarzenia co ~5 s
+    private static final int ACCEL_SAMPLING_US = 50_000;        // 20 Hz wystarcza do oceny ruchu
+    private static final long SUMMARY_WINDOW_MS = 2000;
+
+    // --- DETEKCJA POSTOJU ---
+    private static final float STATIONARY_ENERGY_THRESHOLD = 0.05f; // (m/s^2)^2
+    private static final long STATIONARY_HOLD_MS = 30_000;
+
+    public interface StationaryListener {
+        void onStationaryChanged(boolean stationary);
+    }
+
+    private final SensorManager sensorManager;
+    private final Handler handler;
+    private final StationaryListener stationaryListener;
+
+    private Sensor lightSensor;
+    private Sensor accelSensor;
+    private Sensor motionSensor;
+
+    // --- MIGAWKA (czytana bez blokad) ---
+    private volatile SensorSummary summary = new SensorSummary(-1.0f, Float.NaN, 0);
+    private volatile boolean stationary = false;
+
+    // --- AKUMULATORY (tylko wątek handlera) ---
+    private long windowStartNs = 0;
+    private double luxSum = 0;
+    private int luxCount = 0;
+    private float lastLux = -1.0f;
+    private double magnitudeSum = 0;
+    private double magnitudeSqSum = 0;
+    private int accelCount = 0;
+    private long quietSinceNs = 0; // Początek bieżącego okresu bez ruchu (0 = ruch)
+
+    private final SensorEventListener batchListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            if (event.sensor.getType() == Sensor.TYPE_LIGHT) {
+                luxSum += event.values[0];
+                luxCount++;
+                lastLux = event.values[0];
+            } else if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+                float x = event.values[0];
+                float y = event.values[1];
+                float z = event.values[2];
+                // Moduł przyspieszenia; energia ruchu to jego wariancja w oknie, więc stały bias
+                // akcelerometru (|a| leżącego telefonu różne od GRAVITY_EARTH) się znosi
+                double magnitude = Math.sqrt(x * x + y * y + z * z);
+                magnitudeSum += magnitude;
+                magnitudeSqSum += magnitude * magnitude;
+                accelCount++;
+            }
+            // Znaczniki czasu zdarzeń z paczki są historyczne - okna zamykamy po czasie zdarzenia, nie odbioru
+            maybeCloseWindow(event.timestamp);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) { }
+    };
+
+    private final TriggerEventListener motionTrigger = new TriggerEventListener() {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            handler.post(() -> {
+                quietSinceNs = 0;
+                setStationary(false);
+                // Sensor jednorazowy - uzbrajamy ponownie
+                if (motionSensor != null) sensorManager.requestTriggerSensor(motionTrigger, motionSensor);
+            });
+        }
+    };
+
+    public SensorHub(SensorManager sensorManager, Handler handler, StationaryListener stationaryListener) {
+        this.sensorManager = sensorManager;
+        this.handler = handler;
+        this.stationaryListener = stationaryListener;
+    }
+
+    public void start() {
+        if (sensorManager == null) return;
+
+        lightSensor = sensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
+        accelSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        motionSensor = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+
+        if (lightSensor != null) {
+            sensorManager.registerListener(batchListener, lightSensor, SensorManager.SENSOR_DELAY_NORMAL, BATCH_LATENCY_US, handler);
+        }
+        if (accelSensor != null) {
+            sensorManager.registerListener(batchListener, accelSensor, ACCEL_SAMPLING_US, BATCH_LATENCY_US, handler);
+        }
+        if (motionSensor != null) {
+            sensorManager.requestTriggerSensor(motionTrigger, motionSensor);
+        }
+
+        Log.d(TAG, "Sensory: light=" + (lightSensor != null)
+                + " accel=" + (accelSensor != null) + " (FIFO " + fifoSize(accelSensor) + ")"
+                + " sigMotion=" + (motionSensor != null));
+    }
+
+    public void stop() {
+        if (sensorManager == null) return;
+        sensorManager.unregisterListener(batchListener);
+        if (motionSensor != null) sensorManager.cancelTriggerSensor(motionTrigger, motionSensor);
+    }
+
+    public SensorSummary getSummary() {
+        return summary;
+    }
+
+    public boolean isStationary() {
+        return stationary;
+    }
+
+    // ============================================================================================
+    // AGREGACJA
+    // ============================================================================================
+
+    private void maybeCloseWindow(long eventNs) {
+        if (windowStartNs == 0) {
+            windowStartNs = eventNs;
+            return;
+        }
+        if (eventNs - windowStartNs < SUMMARY_WINDOW_MS * 1_000_000L) return;
+
+        // Światło jest sensorem "on-change" - bez zdarzeń w oknie zostaje ostatnia wartość
+        float meanLux = luxCount > 0 ? (float) (luxSum / luxCount) : lastLux;
+        float motionEnergy = Float.NaN;
+        if (accelCount > 0) {
+            double mean = magnitudeSum / accelCount;
+            // Błąd zaokrągleń może dać minimalnie ujemny wynik
+            motionEnergy = (float) Math.max(0.0, magnitudeSqSum / accelCount - mean * mean);
+        }
+
+        if (accelCount > 0) {
+            if (motionEnergy < STATIONARY_ENERGY_THRESHOLD) {
+                if (quietSinceNs == 0) quietSinceNs = windowStartNs;
+                if (eventNs - quietSinceNs >= STATIONARY_HOLD_MS * 1_000_000L) setStationary(true);
+            } else {
+                quietSinceNs = 0;
+                setStationary(false);
+            }
+        }
+
+        summary = new SensorSummary(meanLux, motionEnergy, eventNs);
+
+        windowStartNs = eventNs;
+        luxSum = 0;
+        luxCount = 0;
+        magnitudeSum = 0;
+        magnitudeSqSum = 0;
+        accelCount = 0;
+    }
+
+    private void setStationary(boolean value) {
+        if (stationary == value) return;
+        stationary = value;
+        Log.d(TAG, value ? "Postój - ograniczamy pracę" : "Ruch wykryty");
+        if (stationaryListener != null) stationaryListener.onStationaryChanged(value);
+    }
+
+    private static int fifoSize(Sensor sensor) {
+        return sensor != null ? sensor.getFifoMaxEventCount() : 0;
+    }
+
+    /**
+     * Podsumowanie jednego okna zdarzeń. motionEnergy to wariancja |a| wokół średniej z okna.
+     * Stanu postoju tu nie kopiujemy - jedynym źródłem jest isStationary() (significant motion zmienia go między oknami).
+     */
+    public static class SensorSummary {
+        public final float meanLux;
+        public final float motionEnergy;
+        private final long windowEndNs;
+
+        SensorSummary(float meanLux, float motionEnergy, long windowEndNs) {
+            this.meanLux = meanLux;
+            this.motionEnergy = motionEnergy;
+            this.windowEndNs = windowEndNs;
+        }
+
+        // Wiek względem końca okna; przy batchingu typowo kilka sekund
+        public long getAgeMs() {
+            if (windowEndNs == 0) return -1;
+            return (SystemClock.elapsedRealtimeNanos() - windowEndNs) / 1_000_000;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.connection;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.location.LocationRequest;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.core.app.ActivityCompat;
+
+import java.util.concurrent.Executor;
+
+/**
+ * TelemetryContext
+ * Wspólny kontekst telemetryczny dla próbek: lokalizacja, bateria i stan uprawnień.
+ * Zamiast kilku wywołań IPC przy każdej próbce (getLastKnownLocation x2, BatteryManager,
+ * checkSelfPermission) subskrybujemy się raz, a próbki czytają gotowe, niezmienne migawki
+ * z pól volatile - bez blokad, z dowolnego wątku kolektora.
+ */
+public class TelemetryContext {
+
+    private static final String TAG = "TelemetryContext";
+
+    // Poniżej tej prędkości uznajemy urządzenie za stojące i rzadziej prosimy o lokalizację
+    private static final float MOVING_SPEED_MPS = 2.0f;
+    private static final int STATIONARY_INTERVAL_FACTOR = 5;
+    // Jak często ponawiamy sprawdzenie uprawnień, dopóki nie zostały przyznane
+    private static final long PERMISSION_RECHECK_MS = 5000;
+
+    private final Context context;
+    private final Handler handler;
+    private final long pollIntervalMs;
+    private final LocationManager locationManager;
+
+    // --- MIGAWKI (czytane bez blokad) ---
+    private volatile LocationSnapshot location;
+    private volatile BatterySnapshot battery;
+    private volatile boolean phoneStateGranted = false;
+    private volatile boolean locationGranted = false;
+    private volatile long lastPermissionCheckMs = 0;
+
+    // Stan subskrypcji - modyfikowany tylko na wątku handlera
+    private boolean started = false;
+    private volatile long currentLocationIntervalMs = 0; // Czytany też z wątków kolektorów
+    private Boolean stationaryHint = null; // Sygnał z SensorHub; null = brak danych z sensorów ruchu
+    private boolean movingBySpeed = false;  // Ostatni fix miał prędkość >= MOVING_SPEED_MPS
+
+    private final LocationListener locationListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(@NonNull Location loc) {
+            location = new LocationSnapshot(loc);
+            movingBySpeed = loc.hasSpeed() && loc.getSpeed() >= MOVING_SPEED_MPS;
+            adjustLocationInterval();
+        }
+    };
+
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context ctx, Intent intent) {
+            updateBattery(intent);
+        }
+    };
+
+    /**
+     * @param handler Wątek, na którym przychodzą aktualizacje lokalizacji i baterii
+     * @param pollIntervalMs Okres próbkowania - bazowy interwał lokalizacji w ruchu
+     */
+    public TelemetryContext(Context context, Handler handler, long pollIntervalMs) {
+        this.context = context;
+        this.handler = handler;
+        this.pollIntervalMs = pollIntervalMs;
+        this.locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        refreshPermissions(0);
+    }
+
+    public void start() {
+        handler.post(() -> {
+            if (started) return;
+            started = true;
+
+            // Bateria: ACTION_BATTERY_CHANGED jest sticky - od razu dostajemy bieżący stan
+            Intent sticky = context.registerReceiver(batteryReceiver,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, handler);
+            if (sticky != null) updateBattery(sticky);
+
+            if (locationGranted) startLocationUpdates(pollIntervalMs);
+        });
+    }
+
+    public void stop() {
+        handler.post(() -> {
+            if (!started) return;
+            started = false;
+
+            try {
+                context.unregisterReceiver(batteryReceiver);
+            } catch (IllegalArgumentException e) {
+                // Receiver nie był zarejestrowany
+            }
+            if (locationManager != null) locationManager.removeUpdates(locationListener);
+            currentLocationIntervalMs = 0;
+        });
+    }
+
+    // ============================================================================================
+    // ODCZYT MIGAWEK
+    // ============================================================================================
+
+    public LocationSnapshot getLocation() {
+        return location;
+    }
+
+    public BatterySnapshot getBattery() {
+        return battery;
+    }
+
+    /**
+     * Aktualny interwał subskrypcji lokalizacji (0, jeśli nie subskrybujemy) - na postoju dłuższy.
+     */
+    public long getLocationIntervalMs() {
+        return currentLocationIntervalMs;
+    }
+
+    public boolean hasPermissions() {
+        refreshPermissions(SystemClock.elapsedRealtime());
+        return phoneStateGranted && locationGranted;
+    }
+
+    public boolean hasLocationPermission() {
+        refreshPermissions(SystemClock.elapsedRealtime());
+        return locationGranted;
+    }
+
+    /**
+     * Uprawnień nie da się "odebrać" bez ubicia procesu, więc raz przyznane trzymamy w cache.
+     * Dopóki brakuje któregoś z nich, sprawdzamy ponownie nie częściej niż co PERMISSION_RECHECK_MS.
+     */
+    private void refreshPermissions(long nowMs) {
+        if (phoneStateGranted && locationGranted) return;
+        if (lastPermissionCheckMs != 0 && nowMs - lastPermissionCheckMs < PERMISSION_RECHECK_MS) return;
+        lastPermissionCheckMs = nowMs;
+
+        boolean hadLocation = locationGranted;
+        phoneStateGranted = ActivityCompat.checkSelfPermission(context, android.Manifest.permission.READ_PHONE_STATE) == PackageManager.PERMISSION_GRANTED;
+        locationGranted = ActivityCompat.checkSelfPermission(context, android.Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+
+        // Uprawnienie przyznane w trakcie działania - dopiero teraz możemy subskrybować lokalizację
+        if (!hadLocation && locationGranted) {
+            handler.post(() -> {
+                if (started && currentLocationIntervalMs == 0) startLocationUpdates(pollIntervalMs);
+            });
+        }
+    }
+
+    // ============================================================================================
+    // LOKALIZACJA I BATERIA
+    // ============================================================================================
+
+    @android.annotation.SuppressLint("MissingPermission")
+    private void startLocationUpdates(long intervalMs) {
+        if (locationManager == null || !locationGranted) return;
+
+        String provider = locationManager.hasProvider(LocationManager.FUSED_PROVIDER)
+                ? LocationManager.FUSED_PROVIDER : LocationManager.GPS_PROVIDER;
+
+        // Jednorazowy odczyt z cache, żeby pierwsze próbki nie czekały na fix
+        if (location == null) {
+            Location last = locationManager.getLastKnownLocation(provider);
+            if (last == null) last = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
+            if (last != null) location = new LocationSnapshot(last);
+        }
+
+        LocationRequest request = new LocationRequest.Builder(intervalMs)
+                .setQuality(LocationRequest.QUALITY_HIGH_ACCURACY)
+                .setMinUpdateIntervalMillis(pollIntervalMs)
+                .build();
+        Executor executor = handler::post;
+
+        try {
+            // Ponowne wywołanie z tym samym listenerem podmienia parametry istniejącej subskrypcji
+            locationManager.requestLocationUpdates(provider, request, executor, locationListener);
+            currentLocationIntervalMs = intervalMs;
+            Log.d(TAG, "Lokalizacja: " + provider + " co " + intervalMs + " ms");
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.e(TAG, "Nie udało się zasubskrybować lokalizacji", e);
+        }
+    }
+
+    /**
+     * Podpowiedź z sensorów ruchu. Wykryty ruch przyspiesza lokalizację od razu, zamiast czekać
+     * na kolejny (na postoju rzadki) fix. Postój z sensorów nie wygrywa z prędkością z GPS -
+     * w płynnie jadącym pojeździe akcelerometr potrafi nie widzieć ruchu.
+     */
+    public void setStationaryHint(boolean stationary) {
+        handler.post(() -> {
+            stationaryHint = stationary;
+            adjustLocationInterval();
+        });
+    }
+
+    // W ruchu (wg GPS albo sensorów) lokalizacja co próbkę, na postoju rzadziej
+    private void adjustLocationInterval() {
+        if (!started || currentLocationIntervalMs == 0) return;
+        boolean moving = movingBySpeed || (stationaryHint != null && !stationaryHint);
+        long desired = moving ? pollIntervalMs : pollIntervalMs * STATIONARY_INTERVAL_FACTOR;
+        if (desired != currentLocationIntervalMs) {
+            startLocationUpdates(desired);
+        }
+    }
+
+    private void updateBattery(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+
+        battery = new BatterySnapshot(
+                (level >= 0 && scale > 0) ? level * 100 / scale : -1,
+                temperature != Integer.MIN_VALUE ? temperature / 10.0f : Float.NaN,
+                status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL
+        );
+    }
+
+    // ============================================================================================
+    // MIGAWKI
+    // ============================================================================================
+
+    /**
+     * Niezmienna kopia ostatniego fixa. Wiek liczony względem zegara monotonicznego.
+     */
+    public static class LocationSnapshot {
+        public final double latitude;
+        public final double longitude;
+        public final float speedMps;
+        public final float accuracyM; // -1, jeśli fix nie podaje dokładności
+        public final String provider;
+        private final long elapsedRealtimeNanos;
+
+        LocationSnapshot(Location loc) {
+            this.latitude = loc.getLatitude();
+            this.longitude = loc.getLongitude();
+            this.speedMps = loc.hasSpeed() ? loc.getSpeed() : 0.0f;
+            this.accuracyM = loc.hasAccuracy() ? loc.getAccuracy() : -1.0f;
+            this.provider = loc.getProvider();
+            this.elapsedRealtimeNanos = loc.getElapsedRealtimeNanos();
+        }
+
+        public long getAgeMs() {
+            return (SystemClock.elapsedRealtimeNanos() - elapsedRealtimeNanos) / 1_000_000;
+        }
+    }
+
+    public static class BatterySnapshot {
+        public final int levelPercent;
+        public final float temperatureC;
+        public final boolean isCharging;
+
+        BatterySnapshot(int levelPercent, float temperatureC, boolean isCharging) {
+            this.levelPercent = levelPercent;
+            this.temperatureC = temperatureC;
+            this.isCharging = isCharging;
+        }
+    }
+}
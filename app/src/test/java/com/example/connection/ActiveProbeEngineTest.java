@@ -0,0 +1,279 @@
+package com.example.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Testy ActiveProbeEngine na lokalnym serwerze zastępczym (TCP DOWNLOAD/UPLOAD + UDP echo).
+ */
+public class ActiveProbeEngineTest {
+
+    private static final int DOWNLOAD_BYTES = 64 * 1024;
+    private static final int UPLOAD_BYTES = 32 * 1024;
+    private static final int SETUP_DELAY_MS = 300;
+
+    private ServerSocket tcpServer;
+    private DatagramSocket udpServer;
+    private Thread tcpThread;
+    private Thread udpThread;
+    private volatile long uploadedBytes = 0;
+    private volatile int downloadDelayMs = 0; // Opóźnienie serwera między komendą a pierwszym bajtem
+    private volatile boolean udpStaleEchoes = false; // Przed echem "PING n" odsyłamy spóźnione "PING n-1"
+
+    @Before
+    public void startStandInServer() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        tcpServer = new ServerSocket(0, 50, loopback);
+        udpServer = new DatagramSocket(0, loopback);
+
+        tcpThread = new Thread(() -> {
+            while (!tcpServer.isClosed()) {
+                try (Socket client = tcpServer.accept()) {
+                    handleTcpClient(client);
+                } catch (IOException ignored) {
+                    // Zamknięcie serwera albo sam connect (pomiar RTT) - obsługujemy kolejnego klienta
+                }
+            }
+        });
+        tcpThread.start();
+
+        udpThread = new Thread(() -> {
+            byte[] buffer = new byte[64];
+            while (!udpServer.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    udpServer.receive(packet);
+                    int seq = Integer.parseInt(new String(packet.getData(), 5, packet.getLength() - 5, StandardCharsets.US_ASCII));
+                    if (udpStaleEchoes && seq > 0) {
+                        byte[] stale = ("PING " + (seq - 1)).getBytes(StandardCharsets.US_ASCII);
+                        udpServer.send(new DatagramPacket(stale, stale.length, packet.getSocketAddress()));
+                        sleep(SETUP_DELAY_MS);
+                    }
+                    udpServer.send(new DatagramPacket(packet.getData(), packet.getLength(), packet.getSocketAddress()));
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        udpThread.start();
+    }
+
+    @After
+    public void stopStandInServer() throws Exception {
+        tcpServer.close();
+        udpServer.close();
+        tcpThread.join(1000);
+        udpThread.join(1000);
+    }
+
+    @Test
+    public void runProbe_measuresThroughputAndLatency() {
+        ActiveProbeEngine engine = newEngine(Long.MAX_VALUE);
+
+        ActiveProbeEngine.ProbeResult result = engine.runProbe();
+        engine.shutdown();
+
+        assertNull(result.error);
+        assertTrue(result.tcpConnectRttMs >= 0);
+        assertTrue(result.udpRttMs >= 0);
+        assertEquals(0, result.udpPingsLost);
+        assertEquals(DOWNLOAD_BYTES, result.downloadBytes);
+        assertTrue(result.downloadKbps > 0);
+        assertEquals(UPLOAD_BYTES, result.uploadBytes);
+        assertEquals(UPLOAD_BYTES, uploadedBytes);
+        assertTrue(result.uploadKbps > 0);
+    }
+
+    @Test
+    public void runProbe_excludesConnectionSetupFromThroughput() {
+        // Wolny DNS + handshake po stronie klienta i zwłoka serwera przed pierwszym bajtem pobierania
+        downloadDelayMs = SETUP_DELAY_MS;
+        ActiveProbeEngine engine = new ActiveProbeEngine("127.0.0.1", tcpServer.getLocalPort(), udpServer.getLocalPort(),
+                5 * 60_000, DOWNLOAD_BYTES, UPLOAD_BYTES, Long.MAX_VALUE);
+        engine.setNetworkBinding(slowSetupBinding());
+
+        ActiveProbeEngine.ProbeResult result = engine.runProbe();
+        engine.shutdown();
+
+        assertNull(result.error);
+        assertTrue(result.tcpConnectRttMs >= SETUP_DELAY_MS);
+        // Gdyby opóźnienie wchodziło do pomiaru, przepustowość nie mogłaby przekroczyć bajty / SETUP_DELAY_MS
+        float downloadCeilingKbps = DOWNLOAD_BYTES * 8f / SETUP_DELAY_MS;
+        float uploadCeilingKbps = UPLOAD_BYTES * 8f / SETUP_DELAY_MS;
+        assertTrue("download " + result.downloadKbps, result.downloadKbps > 2 * downloadCeilingKbps);
+        assertTrue("upload " + result.uploadKbps, result.uploadKbps > 2 * uploadCeilingKbps);
+    }
+
+    @Test
+    public void runProbe_ignoresStaleUdpEchoes() {
+        udpStaleEchoes = true;
+        ActiveProbeEngine engine = newEngine(Long.MAX_VALUE);
+
+        ActiveProbeEngine.ProbeResult result = engine.runProbe();
+        engine.shutdown();
+
+        // Pingi 1 i 2 dostają swoje echo dopiero po SETUP_DELAY_MS; przypisanie cudzego echa zaniżyłoby średnią
+        assertEquals(0, result.udpPingsLost);
+        assertTrue("udp " + result.udpRttMs, result.udpRttMs >= 2 * SETUP_DELAY_MS / 3.0f);
+    }
+
+    @Test
+    public void maybeRun_skipsWhenRadioIdle() {
+        ActiveProbeEngine engine = newEngine(Long.MAX_VALUE);
+
+        assertFalse(engine.maybeRun(false, 1_000));
+        engine.shutdown();
+    }
+
+    @Test
+    public void maybeRun_skipsWithoutNetworkBinding() {
+        ActiveProbeEngine engine = newEngine(Long.MAX_VALUE);
+        engine.setNetworkBinding(null);
+
+        assertFalse(engine.maybeRun(true, 1_000));
+        engine.shutdown();
+    }
+
+    @Test
+    public void maybeRun_respectsHourlyByteBudget() throws Exception {
+        // Budżet wystarcza dokładnie na jeden pomiar
+        ActiveProbeEngine engine = newEngine(DOWNLOAD_BYTES + UPLOAD_BYTES);
+
+        assertTrue(engine.maybeRun(true, 1_000));
+        ActiveProbeEngine.ProbeResult result = awaitResult(engine);
+        assertNotNull(result);
+
+        // Wynik jest publikowany dopiero po zdjęciu flagi running, więc silnik jest już wolny,
+        // a interwał minął - odmowa może wynikać tylko z wyczerpanego budżetu tej godziny
+        assertFalse(engine.maybeRun(true, 1_000 + 10 * 60_000));
+        // Nowa godzina - budżet odnowiony (silnik wolny, bo wynik już odebrany)
+        assertTrue(engine.maybeRun(true, 1_000 + 61 * 60_000));
+        assertNotNull(awaitResult(engine));
+        engine.shutdown();
+    }
+
+    @Test
+    public void runProbe_reportsErrorWhenEndpointUnreachable() throws IOException {
+        int closedPort;
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            closedPort = probe.getLocalPort();
+        }
+        ActiveProbeEngine engine = new ActiveProbeEngine("127.0.0.1", closedPort, udpServer.getLocalPort(),
+                0, DOWNLOAD_BYTES, UPLOAD_BYTES, Long.MAX_VALUE);
+        engine.setNetworkBinding(ActiveProbeEngine.NetworkBinding.PROCESS_DEFAULT);
+
+        ActiveProbeEngine.ProbeResult result = engine.runProbe();
+        engine.shutdown();
+
+        assertNotNull(result.error);
+        assertEquals(-1.0f, result.tcpConnectRttMs, 0.0f);
+        assertEquals(-1.0f, result.downloadKbps, 0.0f);
+        // Każdy nieudany krok zostawia swój wpis - późniejsze nie nadpisują wcześniejszych
+        assertTrue(result.error.contains("tcp_connect: "));
+        assertTrue(result.error.contains("download: "));
+        assertTrue(result.error.contains("upload: "));
+    }
+
+    // ============================================================================================
+    // POMOCNICZE
+    // ============================================================================================
+
+    private ActiveProbeEngine newEngine(long budget) {
+        ActiveProbeEngine engine = new ActiveProbeEngine("127.0.0.1", tcpServer.getLocalPort(), udpServer.getLocalPort(),
+                5 * 60_000, DOWNLOAD_BYTES, UPLOAD_BYTES, budget);
+        engine.setNetworkBinding(ActiveProbeEngine.NetworkBinding.PROCESS_DEFAULT);
+        return engine;
+    }
+
+    // Rozwiązanie nazwy i nawiązanie połączenia trwają po SETUP_DELAY_MS, jak na wolnym łączu komórkowym
+    private static ActiveProbeEngine.NetworkBinding slowSetupBinding() {
+        return new ActiveProbeEngine.NetworkBinding() {
+            @Override
+            public Socket createSocket() {
+                return new Socket() {
+                    @Override
+                    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                        sleep(SETUP_DELAY_MS);
+                        super.connect(endpoint, timeout);
+                    }
+                };
+            }
+
+            @Override
+            public void bindSocket(DatagramSocket socket) { }
+
+            @Override
+            public InetAddress resolve(String host) throws IOException {
+                sleep(SETUP_DELAY_MS);
+                return InetAddress.getByName(host);
+            }
+        };
+    }
+
+    private static void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ActiveProbeEngine.ProbeResult awaitResult(ActiveProbeEngine engine) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            ActiveProbeEngine.ProbeResult result = engine.pollResult();
+            if (result != null) return result;
+            Thread.sleep(50);
+        }
+        return null;
+    }
+
+    private void handleTcpClient(Socket client) throws IOException {
+        InputStream in = client.getInputStream();
+        String command = readLine(in);
+        if (command == null) return;
+
+        String[] parts = command.split(" ");
+        int bytes = Integer.parseInt(parts[1]);
+        OutputStream out = client.getOutputStream();
+
+        if ("DOWNLOAD".equals(parts[0])) {
+            sleep(downloadDelayMs);
+            out.write(new byte[bytes]);
+            out.flush();
+        } else if ("UPLOAD".equals(parts[0])) {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while (total < bytes && (read = in.read(buffer, 0, (int) Math.min(buffer.length, bytes - total))) != -1) {
+                total += read;
+            }
+            uploadedBytes = total;
+            out.write("OK\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') return line.toString("US-ASCII");
+            line.write(b);
+        }
+        return null;
+    }
+}
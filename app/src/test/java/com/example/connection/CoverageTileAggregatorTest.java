@@ -0,0 +1,179 @@
+package com.example.connection;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Testy CoverageTileAggregator: kodowanie klucza kafelka, tablica mieszająca (z rehashem) i agregaty
+ * odczytywane z zapisanego pliku JSONL.
+ */
+public class CoverageTileAggregatorTest {
+
+    private static final double EPS = 1e-9;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void tileKey_roundTripsAtGridEdges() throws Exception {
+        double[][] corners = {{-90.0, -180.0}, {-90.0, 180.0}, {90.0, -180.0}, {90.0, 180.0}, {0.0, 0.0}};
+        int[] techs = {CoverageTileAggregator.TECH_LTE, CoverageTileAggregator.TECH_5G_NSA, CoverageTileAggregator.TECH_5G_SA};
+
+        CoverageTileAggregator aggregator = new CoverageTileAggregator();
+        Set<Long> keys = new HashSet<>();
+        for (double[] corner : corners) {
+            for (int tech : techs) {
+                long key = CoverageTileAggregator.tileKey(corner[0], corner[1], tech);
+                assertTrue(key >= 0); // -1 jest zarezerwowane dla pustego slotu
+                assertEquals(tech, (int) (key & 0x3L));
+                keys.add(key);
+                aggregator.record(corner[0], corner[1], tech, -100.0f, 5.0f, false);
+            }
+        }
+        assertEquals(corners.length * techs.length, keys.size());
+        assertEquals(corners.length * techs.length, aggregator.size());
+
+        // Narożnik i technologia odczytane z pliku (dekodowanie klucza) wskazują z powrotem ten sam klucz
+        List<JSONObject> tiles = persistAndRead(aggregator);
+        double half = CoverageTileAggregator.TILE_SIZE_DEG / 2;
+        for (double[] corner : corners) {
+            for (int tech : techs) {
+                JSONObject tile = findTile(tiles, corner[0], corner[1], tech);
+                assertNotNull("Brak kafelka " + corner[0] + "," + corner[1] + " tech " + tech, tile);
+                assertEquals(1, tile.getInt("count"));
+                assertEquals(CoverageTileAggregator.tileKey(corner[0], corner[1], tech),
+                        CoverageTileAggregator.tileKey(tile.getDouble("tile_lat") + half, tile.getDouble("tile_lng") + half, tech));
+            }
+        }
+    }
+
+    @Test
+    public void record_survivesRehashPastLoadFactor() throws Exception {
+        CoverageTileAggregator aggregator = new CoverageTileAggregator();
+        // Początkowa pojemność 256 przy współczynniku 0.6 - 1000 kafelków wymusza kilka rehashy
+        int tileCount = 1000;
+        for (int i = 0; i < tileCount; i++) {
+            double lat = 52.0 + i * CoverageTileAggregator.TILE_SIZE_DEG + CoverageTileAggregator.TILE_SIZE_DEG / 2;
+            // Kafelek i dostaje i%3+1 próbek o RSRP -50-i, więc agregaty są rozróżnialne po rehashu
+            for (int n = 0; n <= i % 3; n++) {
+                aggregator.record(lat, 21.0005, CoverageTileAggregator.TECH_LTE, -50.0f - i, Float.NaN, n == 0);
+            }
+        }
+        assertEquals(tileCount, aggregator.size());
+
+        List<JSONObject> tiles = persistAndRead(aggregator);
+        assertEquals(tileCount, tiles.size());
+        for (int i = 0; i < tileCount; i++) {
+            double lat = 52.0 + i * CoverageTileAggregator.TILE_SIZE_DEG + CoverageTileAggregator.TILE_SIZE_DEG / 2;
+            JSONObject tile = findTile(tiles, lat, 21.0005, CoverageTileAggregator.TECH_LTE);
+            assertNotNull("Zgubiony kafelek " + i, tile);
+            assertEquals(i % 3 + 1, tile.getInt("count"));
+            assertEquals(-50.0 - i, tile.getDouble("rsrp_mean"), 1e-3);
+            assertEquals(1, tile.getInt("anomaly_count"));
+        }
+    }
+
+    @Test
+    public void record_aggregatesMinMaxMean() throws Exception {
+        CoverageTileAggregator aggregator = new CoverageTileAggregator();
+        aggregator.record(52.2297, 21.0122, CoverageTileAggregator.TECH_5G_SA, -80.0f, 10.0f, false);
+        aggregator.record(52.2297, 21.0122, CoverageTileAggregator.TECH_5G_SA, -100.0f, Float.NaN, true);
+        aggregator.record(52.2297, 21.0122, CoverageTileAggregator.TECH_5G_SA, -90.0f, 4.0f, false);
+
+        JSONObject tile = findTile(persistAndRead(aggregator), 52.2297, 21.0122, CoverageTileAggregator.TECH_5G_SA);
+        assertNotNull(tile);
+        assertEquals("5G_SA", tile.getString("tech"));
+        assertEquals(3, tile.getInt("count"));
+        assertEquals(-90.0, tile.getDouble("rsrp_mean"), EPS);
+        assertEquals(-100.0, tile.getDouble("rsrp_min"), EPS);
+        assertEquals(-80.0, tile.getDouble("rsrp_max"), EPS);
+        // SINR tylko z dwóch próbek, które go miały
+        assertEquals(7.0, tile.getDouble("sinr_mean"), EPS);
+        assertEquals(4.0, tile.getDouble("sinr_min"), EPS);
+        assertEquals(10.0, tile.getDouble("sinr_max"), EPS);
+        assertEquals(1, tile.getInt("anomaly_count"));
+    }
+
+    @Test
+    public void record_nanSinrLeavesSinrFieldsNull() throws Exception {
+        CoverageTileAggregator aggregator = new CoverageTileAggregator();
+        aggregator.record(50.0615, 19.9383, CoverageTileAggregator.TECH_LTE, -95.0f, Float.NaN, false);
+
+        JSONObject tile = findTile(persistAndRead(aggregator), 50.0615, 19.9383, CoverageTileAggregator.TECH_LTE);
+        assertNotNull(tile);
+        assertTrue(tile.isNull("sinr_mean"));
+        assertTrue(tile.isNull("sinr_min"));
+        assertTrue(tile.isNull("sinr_max"));
+        assertEquals(-95.0, tile.getDouble("rsrp_mean"), EPS);
+    }
+
+    @Test
+    public void persist_skipsWhenNothingChanged() throws Exception {
+        CoverageTileAggregator aggregator = new CoverageTileAggregator();
+        aggregator.record(50.0615, 19.9383, CoverageTileAggregator.TECH_LTE, -95.0f, Float.NaN, false);
+
+        File target = tmp.newFile("tiles.jsonl");
+        aggregator.persist(target);
+        assertTrue(target.delete());
+        aggregator.persist(target);
+        assertFalse(target.exists());
+    }
+
+    // ============================================================================================
+    // POMOCNICZE
+    // ============================================================================================
+
+    private List<JSONObject> persistAndRead(CoverageTileAggregator aggregator) throws IOException, JSONException {
+        File target = new File(tmp.getRoot(), "tiles_" + System.nanoTime() + ".jsonl");
+        aggregator.persist(target);
+
+        List<JSONObject> tiles = new ArrayList<>();
+        for (String line : Files.readAllLines(target.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) tiles.add(new JSONObject(line));
+        }
+        return tiles;
+    }
+
+    // Jedyny kafelek danej technologii, którego obszar zawiera punkt
+    private static JSONObject findTile(List<JSONObject> tiles, double lat, double lng, int tech) throws JSONException {
+        JSONObject found = null;
+        for (JSONObject tile : tiles) {
+            if (!contains(tile, lat, lng, tech)) continue;
+            assertNull("Dwa kafelki zawierają " + lat + "," + lng, found);
+            found = tile;
+        }
+        return found;
+    }
+
+    private static boolean contains(JSONObject tile, double lat, double lng, int tech) throws JSONException {
+        double size = CoverageTileAggregator.TILE_SIZE_DEG;
+        double tileLat = tile.getDouble("tile_lat");
+        double tileLng = tile.getDouble("tile_lng");
+        return techIndex(tile.getString("tech")) == tech
+                && tileLat <= lat + EPS && lat < tileLat + size - EPS
+                && tileLng <= lng + EPS && lng < tileLng + size - EPS;
+    }
+
+    private static int techIndex(String name) {
+        switch (name) {
+            case "LTE": return CoverageTileAggregator.TECH_LTE;
+            case "5G_NSA": return CoverageTileAggregator.TECH_5G_NSA;
+            case "5G_SA": return CoverageTileAggregator.TECH_5G_SA;
+            default: throw new IllegalArgumentException(name);
+        }
+    }
+}